@@ -1,31 +1,145 @@
+import aggregation.SketchAggregationClient;
+import aggregation.SketchAggregationServer;
+import bloomfilters.BinaryFuseFilter;
 import bloomfilters.BloomFilter;
 import bloomfilters.CountingBloomFilter;
 import cmsketch.CMRangeSketch;
 import cmsketch.CountMinSketch;
+import cmsketch.HeavyHitters;
+import cmsketch.OffHeapCountMinSketch;
+import cmsketch.WindowedCountMinSketch;
 import cuckoofilters.CuckooFilter;
 import exponentialhistograms.ExponentialHistogram;
+import exponentialhistograms.SumExponentialHistogram;
 import fmsketches.FMsketch;
+import ingestion.SketchIngestion;
+import kllsketch.KLLSketch;
+import metrics.Metrics;
+import registry.SketchRegistry;
+import thetasketch.ThetaSketch;
 import utils.DyadicIntervalCalculator;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static utils.Utils.*;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         //testExponentialHistograms();
+        //testSumExponentialHistogram();
         //testBloomFilter();
+        //testBloomFilterSetOperations();
         //testCountingBloomFilter();
         //testCuckooFilter();
         //testCountMinSketch();
+        //testCountMinSketchJoinSize();
+        //testWeightedCountMinSketch();
         //testDyadicIntervalCalculator();
         //testCMsketchRangeQueries();
+        //testCMsketchQuantiles();
+        //testKLLSketch();
+        //testWindowedCountMinSketch();
+        //testMetrics();
+        //testBatchHashing();
+        //testOffHeapCountMinSketch();
+        //testBinaryFuseFilter();
+        //testAggregationServer();
+        //testSketchRegistry();
+        //testSketchIngestion();
         testFMsketch();
+        //testThetaSketch();
+        //testSerialization();
+        //testHeavyHitters();
 
     }
 
+    public static void testHeavyHitters(){
+        final var k = 10;
+        int[] arrivals = generateRandomGaussians(1_000_000, 500, 50);
+        final var heavyHitters = new HeavyHitters(0.0001, 0.01, k);
+        for (int arrival : arrivals) {
+            heavyHitters.add(arrival);
+        }
+        // calculate the actual top-k to compare with
+        final var actualCounts = new HashMap<Integer, Integer>();
+        for (int arrival : arrivals) {
+            actualCounts.merge(arrival, 1, Integer::sum);
+        }
+        System.out.println("Estimated top " + k + ":");
+        for (int[] entry : heavyHitters.topK()) {
+            System.out.println(entry[0] + ": " + entry[1] + " (actual: " + actualCounts.get(entry[0]) + ")");
+        }
+        System.out.println("Actual top " + k + ":");
+        actualCounts.entrySet().stream()
+                .sorted((a, b) -> Integer.compare(b.getValue(), a.getValue()))
+                .limit(k)
+                .forEach(entry -> System.out.println(entry.getKey() + ": " + entry.getValue()));
+
+        final var start = System.nanoTime();
+        final var throughputSketch = new HeavyHitters(0.0001, 0.01, k);
+        for (int arrival : arrivals) {
+            throughputSketch.add(arrival);
+        }
+        System.out.println("Throughput: " + (int) (arrivals.length / ((System.nanoTime() - start) / 1e9)) + " arrivals/s");
+    }
+
+    public static void testSerialization(){
+        int[] arrivals = generateRandomGaussians(1_000_000, 500, 50);
+        final var countMinSketch = new CountMinSketch(0.001, 0.01);
+        final var bloomFilter = new BloomFilter(0.01, 1000);
+        final var histogram = new ExponentialHistogram(0.1, 500);
+        for (int arrival : arrivals) {
+            countMinSketch.add(arrival);
+            bloomFilter.add(arrival);
+            histogram.addArrival(arrival);
+        }
+
+        // round trip: the restored sketches should answer exactly the same
+        final var restoredSketch = CountMinSketch.deserialize(countMinSketch.serialize());
+        final var restoredFilter = BloomFilter.deserialize(bloomFilter.serialize());
+        final var restoredHistogram = ExponentialHistogram.deserialize(histogram.serialize());
+        boolean equal = true;
+        for (int i = 0; i < 1000; i++) {
+            equal &= countMinSketch.count(i) == restoredSketch.count(i);
+            equal &= bloomFilter.contains(i) == restoredFilter.contains(i);
+        }
+        equal &= histogram.getCountEstimation(10000) == restoredHistogram.getCountEstimation(10000);
+        System.out.println("Restored sketches give the same answers: " + equal);
+
+        // the counters of a sketch with few distinct values are mostly zero, so they are written sparsely
+        System.out.println("Count-min sketch size: " + countMinSketch.serialize().length + " bytes");
+        System.out.println("Bloom filter size: " + bloomFilter.serialize().length + " bytes");
+        System.out.println("Exponential histogram size: " + histogram.serialize().length + " bytes");
+
+        final var wideSketch = new CountMinSketch(0.00001, 0.01);
+        for (int i = 0; i < 10_000_000; i++) {
+            wideSketch.add(i);
+        }
+        final var iterations = 20;
+        byte[] bytes = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes = wideSketch.serialize();
+        }
+        final var serializeTime = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            CountMinSketch.deserialize(bytes);
+        }
+        final var deserializeTime = (System.nanoTime() - start) / 1e9;
+        final var megabytes = (double) bytes.length * iterations / (1024 * 1024);
+        System.out.println("Dense count-min sketch size: " + bytes.length + " bytes");
+        System.out.println("Serialize throughput: " + (int) (megabytes / serializeTime) + " MB/s");
+        System.out.println("Deserialize throughput: " + (int) (megabytes / deserializeTime) + " MB/s");
+    }
+
     public static void testFMsketch(){
         final var epsilon = 0.1;
         final var delta = 0.1;
@@ -61,6 +175,573 @@ public class Main {
         System.out.println("Estimated count: " + cmRangeSketch.count(range));
     }
 
+    public static void testCMsketchQuantiles(){
+        final var epsilon = 0.0001;
+        final var delta = 0.01;
+        final var domain = new int[]{1, 10000};
+        final var cmRangeSketch = new CMRangeSketch(epsilon, delta, domain);
+        int[] arrivals = generateRandomGaussians(100000, 5000, 1000);
+        for (int i = 0; i < arrivals.length; i++) {
+            // keep the arrivals inside the domain
+            arrivals[i] = Math.max(domain[0], Math.min(arrivals[i], domain[1]));
+            cmRangeSketch.updateSketches(arrivals[i]);
+        }
+        final var sorted = arrivals.clone();
+        Arrays.sort(sorted);
+        for (double phi : new double[]{0.01, 0.25, 0.5, 0.75, 0.99}) {
+            final var actual = sorted[(int) Math.ceil(phi * sorted.length) - 1];
+            System.out.println("Quantile " + phi + ": actual " + actual + ", estimated " + cmRangeSketch.quantile(phi));
+        }
+        for (int value : new int[]{2000, 5000, 8000}) {
+            final var actual = Arrays.stream(arrivals).filter(i -> i <= value).count();
+            System.out.println("Rank of " + value + ": actual " + actual + ", estimated " + cmRangeSketch.rank(value));
+        }
+    }
+
+    public static void testKLLSketch(){
+        int[] arrivals = generateRandomGaussians(1_000_000, 5000, 1000);
+        // split the stream over two partitions and merge their sketches afterwards
+        final var firstPartition = new KLLSketch();
+        final var secondPartition = new KLLSketch();
+        for (int i = 0; i < arrivals.length; i++) {
+            if (i % 2 == 0) {
+                firstPartition.add(arrivals[i]);
+            } else {
+                secondPartition.add(arrivals[i]);
+            }
+        }
+        firstPartition.merge(secondPartition);
+        final var sorted = arrivals.clone();
+        Arrays.sort(sorted);
+        System.out.println("Normalized rank error: " + firstPartition.getNormalizedRankError());
+        System.out.println("Retained items: " + firstPartition.retainedItems());
+        for (double phi : new double[]{0.01, 0.25, 0.5, 0.75, 0.99}) {
+            final var actual = sorted[(int) Math.ceil(phi * sorted.length) - 1];
+            System.out.println("Quantile " + phi + ": actual " + actual + ", estimated " + firstPartition.quantile(phi));
+        }
+        final var cdf = firstPartition.cdf(new double[]{3000, 5000, 7000});
+        System.out.println("CDF at 3000, 5000, 7000: " + Arrays.toString(cdf));
+
+        // compare the update cost with the dyadic approach of the range sketch
+        final var domain = new int[]{1, 10000};
+        final var cmRangeSketch = new CMRangeSketch(0.001, 0.01, domain);
+        final var kllSketch = new KLLSketch();
+        long start = System.nanoTime();
+        for (int arrival : arrivals) {
+            kllSketch.add(arrival);
+        }
+        System.out.println("KLL updates: " + (System.nanoTime() - start) / arrivals.length + " ns/arrival");
+        start = System.nanoTime();
+        for (int arrival : arrivals) {
+            cmRangeSketch.updateSketches(Math.max(domain[0], Math.min(arrival, domain[1])));
+        }
+        System.out.println("CM range sketch updates: " + (System.nanoTime() - start) / arrivals.length + " ns/arrival");
+    }
+
+    public static void testWindowedCountMinSketch(){
+        // a fake clock so we don't have to wait, every tick is one epoch
+        final var clock = new long[]{0};
+        final var slices = 4;
+        final var windowedSketch = new WindowedCountMinSketch(0.001, 0.01, slices, 1, 0.5, () -> clock[0]);
+        // value 1 is hot in the first epochs, value 2 in the last epochs
+        for (int epoch = 0; epoch < 8; epoch++) {
+            clock[0] = epoch;
+            for (int i = 0; i < 1000; i++) {
+                windowedSketch.add(epoch < 4 ? 1 : 2);
+            }
+            System.out.println("Epoch " + epoch + ": count of 1: " + windowedSketch.count(1) + ", count of 2: " + windowedSketch.count(2)
+                    + ", decayed count of 2: " + windowedSketch.decayedCount(2));
+        }
+        // after a long pause everything has expired
+        clock[0] = 100;
+        System.out.println("After a pause: count of 2: " + windowedSketch.count(2));
+    }
+
+    /**
+     * Run with -Dsketches.metrics=true to also record the hot path metrics (kick chains, merges).
+     * While this runs, the sketches can be inspected with JConsole under the "sketches" domain.
+     */
+    public static void testMetrics(){
+        int[] arrivals = generateRandomGaussians(100000, 500, 50);
+        final var bloomFilter = new BloomFilter(0.01, 300);
+        final var cuckooFilter = new CuckooFilter(0.01, 300);
+        final var countMinSketch = new CountMinSketch(0.001, 0.01);
+        final var histogram = new ExponentialHistogram(0.1, 500);
+        Metrics.register("bloom", bloomFilter);
+        Metrics.register("cuckoo", cuckooFilter);
+        Metrics.register("cms", countMinSketch);
+        Metrics.register("histogram", histogram);
+        for (int arrival : arrivals) {
+            bloomFilter.add(arrival);
+            cuckooFilter.insert(arrival);
+            countMinSketch.add(arrival);
+            histogram.addArrival(arrival);
+        }
+        for (Map.Entry<String, Map<String, Number>> entry : Metrics.snapshot().entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+        }
+        Metrics.unregister("bloom");
+        Metrics.unregister("cuckoo");
+        Metrics.unregister("cms");
+        Metrics.unregister("histogram");
+    }
+
+    public static void testBatchHashing(){
+        int[] arrivals = generateRandomArray(10_000_000, 0, 1_000_000);
+        int[] queries = generateRandomArray(1_000_000, 0, 2_000_000);
+        // check that the batch paths give exactly the same answers as adding one value at a time
+        final var countMinSketch = new CountMinSketch(0.0001, 0.01);
+        final var batchCountMinSketch = new CountMinSketch(0.0001, 0.01);
+        final var bloomFilter = new BloomFilter(0.01, 1_000_000);
+        final var batchBloomFilter = new BloomFilter(0.01, 1_000_000);
+        for (int arrival : arrivals) {
+            countMinSketch.add(arrival);
+            bloomFilter.add(arrival);
+        }
+        batchCountMinSketch.addAll(arrivals);
+        batchBloomFilter.addAll(arrivals);
+        final var counts = batchCountMinSketch.countAll(queries);
+        final var contains = batchBloomFilter.containsAll(queries);
+        boolean equal = true;
+        for (int i = 0; i < queries.length; i++) {
+            equal &= counts[i] == countMinSketch.count(queries[i]);
+            equal &= contains[i] == bloomFilter.contains(queries[i]);
+        }
+        System.out.println("Batch results equal scalar results: " + equal);
+
+        // a single timed round mostly measures the JIT and the other background work, so warm both paths up first
+        // and compare the median time per value over several rounds
+        final var warmUpRounds = 3;
+        final var rounds = 7;
+        final var scalarAdd = new double[rounds];
+        final var batchAdd = new double[rounds];
+        final var scalarBloom = new double[rounds];
+        final var batchBloom = new double[rounds];
+        for (int round = -warmUpRounds; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int arrival : arrivals) {
+                countMinSketch.add(arrival);
+            }
+            final var scalarAddTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            batchCountMinSketch.addAll(arrivals);
+            final var batchAddTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int arrival : arrivals) {
+                bloomFilter.add(arrival);
+            }
+            final var scalarBloomTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            batchBloomFilter.addAll(arrivals);
+            final var batchBloomTime = System.nanoTime() - start;
+            if (round >= 0) {
+                scalarAdd[round] = (double) scalarAddTime / arrivals.length;
+                batchAdd[round] = (double) batchAddTime / arrivals.length;
+                scalarBloom[round] = (double) scalarBloomTime / arrivals.length;
+                batchBloom[round] = (double) batchBloomTime / arrivals.length;
+            }
+        }
+        System.out.println(String.format("CMS add: %.1f ns/value scalar, %.1f ns/value batch, speedup %.2f",
+                median(scalarAdd), median(batchAdd), median(scalarAdd) / median(batchAdd)));
+        System.out.println(String.format("Bloom add: %.1f ns/value scalar, %.1f ns/value batch, speedup %.2f",
+                median(scalarBloom), median(batchBloom), median(scalarBloom) / median(batchBloom)));
+    }
+
+    private static double median(double[] values) {
+        final var sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public static void testOffHeapCountMinSketch() throws IOException {
+        final var epsilon = 0.000001;
+        final var delta = 0.01;
+        int[] arrivals = generateRandomArray(10_000_000, 0, 10_000_000);
+        final var runtime = Runtime.getRuntime();
+
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        final var countMinSketch = new CountMinSketch(epsilon, delta);
+        System.out.println("On-heap sketch heap usage: " + (runtime.totalMemory() - runtime.freeMemory() - heapBefore) / (1024 * 1024) + " MB");
+        System.gc();
+        heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        try (final var offHeapSketch = new OffHeapCountMinSketch(epsilon, delta, false)) {
+            System.out.println("Off-heap sketch heap usage: " + (runtime.totalMemory() - runtime.freeMemory() - heapBefore) / (1024 * 1024) + " MB"
+                    + ", off-heap: " + offHeapSketch.offHeapBytes() / (1024 * 1024) + " MB");
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                countMinSketch.addAll(arrivals);
+                final var heapAdd = System.nanoTime() - start;
+                start = System.nanoTime();
+                offHeapSketch.addAll(arrivals);
+                final var offHeapAdd = System.nanoTime() - start;
+                start = System.nanoTime();
+                long heapSum = 0;
+                for (int i = 0; i < 1_000_000; i++) {
+                    heapSum += countMinSketch.count(arrivals[i]);
+                }
+                final var heapCount = System.nanoTime() - start;
+                start = System.nanoTime();
+                long offHeapSum = 0;
+                for (int i = 0; i < 1_000_000; i++) {
+                    offHeapSum += offHeapSketch.count(arrivals[i]);
+                }
+                final var offHeapCount = System.nanoTime() - start;
+                System.out.println("Round " + round + ": add " + heapAdd / arrivals.length + " vs " + offHeapAdd / arrivals.length + " ns/value"
+                        + ", count " + heapCount / 1_000_000 + " vs " + offHeapCount / 1_000_000 + " ns/query (on-heap vs off-heap)"
+                        + ", same counts: " + (heapSum == offHeapSum));
+            }
+        }
+
+        // a file backed sketch keeps its counts after it is closed and mapped again
+        final var file = Files.createTempFile("cms", ".bin");
+        try (final var fileSketch = OffHeapCountMinSketch.mapFile(0.001, delta, true, file)) {
+            fileSketch.addAll(arrivals);
+            fileSketch.flush();
+        }
+        try (final var reopened = OffHeapCountMinSketch.mapFile(0.001, delta, true, file)) {
+            System.out.println("Count of " + arrivals[0] + " after reopening: " + reopened.count(arrivals[0]));
+        }
+        // the header of the file makes sure it is only reopened with the same parameters
+        try {
+            OffHeapCountMinSketch.mapFile(0.001, delta, false, file).close();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Reopening with int counters: " + e.getMessage());
+        }
+        Files.delete(file);
+    }
+
+    public static void testBinaryFuseFilter(){
+        final var falsePositiveRate = 0.004;
+        // keys between 0 and 10 million, the same key may appear more than once
+        int[] keys = generateRandomArray(1_000_000, 0, 10_000_000);
+        final var distinctKeys = (int) Arrays.stream(keys).distinct().count();
+
+        long start = System.nanoTime();
+        final var binaryFuseFilter = new BinaryFuseFilter(falsePositiveRate, keys);
+        System.out.println("Build time: " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        final var bloomFilter = new BloomFilter(falsePositiveRate, distinctKeys);
+        bloomFilter.addAll(keys);
+
+        boolean allFound = true;
+        for (int key : keys) {
+            allFound &= binaryFuseFilter.contains(key);
+        }
+        System.out.println("All keys are in the filter: " + allFound);
+
+        // keys above 10 million were never added
+        int falsePositives = 0;
+        int bloomFalsePositives = 0;
+        for (int i = 10_000_001; i < 11_000_001; i++) {
+            if (binaryFuseFilter.contains(i)) {
+                falsePositives++;
+            }
+            if (bloomFilter.contains(i)) {
+                bloomFalsePositives++;
+            }
+        }
+        System.out.println("Binary fuse filter: " + String.format("%.2f", binaryFuseFilter.bitsPerKey(distinctKeys))
+                + " bits/key, false positive rate: " + falsePositives / 1_000_000.0);
+        System.out.println("Bloom filter: " + String.format("%.2f", bloomFilter.metricsSnapshot().get("size").doubleValue() / distinctKeys)
+                + " bits/key, false positive rate: " + bloomFalsePositives / 1_000_000.0);
+    }
+
+    public static void testAggregationServer() throws IOException, InterruptedException {
+        final var workers = 4;
+        final var arrivalsPerWorker = 1_000_000;
+        final var deltaEvery = 50_000;
+        try (final var server = new SketchAggregationServer(0)) {
+            final var threads = new Thread[workers];
+            final var retries = new AtomicLong();
+            for (int w = 0; w < workers; w++) {
+                final var seed = w;
+                threads[w] = new Thread(() -> {
+                    try (final var client = new SketchAggregationClient(server.getPort(), 4)) {
+                        final var local = new CountMinSketch(0.001, 0.01);
+                        for (int i = 0; i < arrivalsPerWorker; i++) {
+                            local.add((i * 31 + seed) % 1000);
+                            if ((i + 1) % deltaEvery == 0 || i == arrivalsPerWorker - 1) {
+                                // only clear the local sketch if the server will get it, otherwise keep accumulating
+                                if (client.offerDelta("requests", local.serialize())) {
+                                    local.clear();
+                                } else {
+                                    retries.incrementAndGet();
+                                }
+                            }
+                        }
+                        // the last offer may have failed, so keep trying until it is queued
+                        while (!client.offerDelta("requests", local.serialize())) {
+                            Thread.sleep(1);
+                        }
+                        client.flush();
+                    } catch (IOException | InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            final var start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.println("Workers done in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                    + retries.get() + " deltas had to be retried");
+            try (final var client = new SketchAggregationClient(server.getPort(), 1)) {
+                // every value below 1000 was added 1000 times by every worker
+                System.out.println("Central count of 7: " + client.query("requests", 7) + " (actual: " + workers * arrivalsPerWorker / 1000 + ")");
+                final var central = CountMinSketch.deserialize(client.get("requests"));
+                System.out.println("Fetched copy agrees: " + (central.count(7) == client.query("requests", 7)));
+                System.out.println("Merged deltas: " + server.getMergedDeltas() + ", rejected frames: " + server.getRejectedFrames());
+            }
+        }
+    }
+
+    public static void testSketchRegistry() throws IOException {
+        final var spillDirectory = Files.createTempDirectory("sketches");
+        // about 5 KB per sketch, so 2 MB holds roughly 370 of the 2000 tenants
+        try (final var registry = SketchRegistry.countMinSketches(0.01, 0.01, 2_000_000, spillDirectory)) {
+            // a few hundred busy tenants, the rest are rarely used and get spilled
+            int[] tenants = generateRandomGaussians(1_000_000, 1000, 60);
+            int[] arrivals = generateRandomGaussians(1_000_000, 500, 50);
+            final var actualCounts = new HashMap<Integer, Integer>();
+            final var start = System.nanoTime();
+            for (int i = 0; i < arrivals.length; i++) {
+                final var arrival = arrivals[i];
+                registry.update("tenant-" + Math.floorMod(tenants[i], 2000), sketch -> sketch.add(arrival));
+                if (Math.floorMod(tenants[i], 2000) == 1000) {
+                    actualCounts.merge(arrival, 1, Integer::sum);
+                }
+            }
+            System.out.println("Throughput: " + (int) (arrivals.length / ((System.nanoTime() - start) / 1e9)) + " arrivals/s");
+            System.out.println("Count of 500 for tenant-1000: " + registry.read("tenant-1000", sketch -> sketch.count(500))
+                    + " (actual: " + actualCounts.get(500) + ")");
+            System.out.println(registry.metricsSnapshot());
+        }
+        Files.delete(spillDirectory);
+    }
+
+    public static void testBloomFilterSetOperations(){
+        // two days of keys, 200k of them seen on both days
+        final var monday = new BloomFilter(0.01, 1_000_000);
+        final var tuesday = new BloomFilter(0.01, 1_000_000);
+        for (int i = 0; i < 600_000; i++) {
+            monday.add(i);
+        }
+        for (int i = 400_000; i < 800_000; i++) {
+            tuesday.add(i);
+        }
+        System.out.println("Monday: " + (int) monday.estimateCardinality() + " (actual: 600000)");
+        System.out.println("Tuesday: " + (int) tuesday.estimateCardinality() + " (actual: 400000)");
+        System.out.println("Both days: " + (int) monday.estimateIntersectionSize(tuesday) + " (actual: 200000)");
+        System.out.println("Either day: " + (int) monday.estimateUnionSize(tuesday) + " (actual: 800000)");
+
+        final var union = monday.union(tuesday);
+        final var intersection = monday.intersect(tuesday);
+        System.out.println("Union contains 0 and 799999: " + (union.contains(0) && union.contains(799_999)));
+        System.out.println("Intersection contains 500000: " + intersection.contains(500_000)
+                + ", contains 0: " + intersection.contains(0) + " (FPs possible)");
+
+        final var iterations = 1000;
+        final var start = System.nanoTime();
+        long bits = 0;
+        for (int i = 0; i < iterations; i++) {
+            bits += monday.union(tuesday).bitCount();
+        }
+        final var bytes = (double) iterations * 3 * monday.metricsSnapshot().get("size").longValue() / 8;
+        System.out.println("Union + bitCount: " + String.format("%.2f", bytes / (System.nanoTime() - start)) + " GB/s (" + bits / iterations + " bits set)");
+    }
+
+    public static void testCountMinSketchJoinSize(){
+        int[] orders = generateRandomGaussians(1_000_000, 500, 50);
+        int[] payments = generateRandomGaussians(500_000, 520, 80);
+        final var ordersSketch = new CountMinSketch(0.0001, 0.01);
+        final var paymentsSketch = new CountMinSketch(0.0001, 0.01);
+        ordersSketch.addAll(orders);
+        paymentsSketch.addAll(payments);
+
+        final var orderCounts = new HashMap<Integer, Long>();
+        for (int order : orders) {
+            orderCounts.merge(order, 1L, Long::sum);
+        }
+        final var paymentCounts = new HashMap<Integer, Long>();
+        for (int payment : payments) {
+            paymentCounts.merge(payment, 1L, Long::sum);
+        }
+        long joinSize = 0;
+        long selfJoinSize = 0;
+        for (Map.Entry<Integer, Long> entry : orderCounts.entrySet()) {
+            joinSize += entry.getValue() * paymentCounts.getOrDefault(entry.getKey(), 0L);
+            selfJoinSize += entry.getValue() * entry.getValue();
+        }
+        System.out.println("Join size: " + ordersSketch.innerProduct(paymentsSketch) + " (actual: " + joinSize + ")");
+        System.out.println("Self-join size: " + ordersSketch.selfJoinSize() + " (actual: " + selfJoinSize + ")");
+
+        final var iterations = 10_000;
+        long checksum = 0;
+        final var start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += ordersSketch.innerProduct(paymentsSketch);
+        }
+        System.out.println("Inner product: " + (System.nanoTime() - start) / 1000 / iterations + " us (" + checksum / iterations + ")");
+    }
+
+    public static void testWeightedCountMinSketch(){
+        // (key, bytes) pairs with near uniform keys
+        int[] keys = generateRandomArray(1_000_000, 0, 100_000);
+        final var weights = new long[keys.length];
+        int[] bytes = generateRandomArray(keys.length, 1, 1500);
+        for (int i = 0; i < keys.length; i++) {
+            weights[i] = bytes[i];
+        }
+        final var sketch = new CountMinSketch(0.001, 0.01);
+        sketch.addAll(keys, weights);
+        final var actualCounts = new HashMap<Integer, Long>();
+        for (int i = 0; i < keys.length; i++) {
+            actualCounts.merge(keys[i], weights[i], Long::sum);
+        }
+        double minError = 0;
+        double countMeanMinError = 0;
+        for (Map.Entry<Integer, Long> entry : actualCounts.entrySet()) {
+            minError += Math.abs(sketch.count(entry.getKey()) - entry.getValue());
+            countMeanMinError += Math.abs(sketch.countMeanMin(entry.getKey()) - entry.getValue());
+        }
+        System.out.println("Average bytes per key: " + (int) (Arrays.stream(weights).sum() / actualCounts.size()));
+        System.out.println("Average error of count: " + (int) (minError / actualCounts.size()));
+        System.out.println("Average error of countMeanMin: " + (int) (countMeanMinError / actualCounts.size()));
+
+        for (int round = 0; round < 3; round++) {
+            final var unit = new CountMinSketch(0.001, 0.01);
+            final var weighted = new CountMinSketch(0.001, 0.01);
+            long start = System.nanoTime();
+            for (int key : keys) {
+                unit.add(key);
+            }
+            final var unitTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < keys.length; i++) {
+                weighted.add(keys[i], weights[i]);
+            }
+            final var weightedTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            unit.addAll(keys);
+            final var unitBatchTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            weighted.addAll(keys, weights);
+            final var weightedBatchTime = System.nanoTime() - start;
+            System.out.println("Round " + round + ": add " + unitTime / keys.length + " ns, weighted add " + weightedTime / keys.length
+                    + " ns, addAll " + unitBatchTime / keys.length + " ns, weighted addAll " + weightedBatchTime / keys.length + " ns per key");
+        }
+    }
+
+    public static void testSketchIngestion() throws InterruptedException {
+        final var producers = 4;
+        final var valuesPerProducer = 2_000_000;
+        int[] values = generateRandomGaussians(valuesPerProducer, 500, 50);
+        for (int round = 0; round < 2; round++) {
+            // baseline: every producer takes a lock around the adds
+            final var lockedSketch = new CountMinSketch(0.001, 0.01);
+            final var lockedFilter = new BloomFilter(0.01, 1000);
+            final var lockedHistogram = new ExponentialHistogram(0.01, 500);
+            final var lock = new Object();
+            final var lockedLatencies = new long[producers][valuesPerProducer / 64];
+            final var lockedTime = runProducers(producers, (producer, i) -> {
+                synchronized (lock) {
+                    lockedSketch.add(values[i]);
+                    lockedFilter.add(values[i]);
+                    lockedHistogram.addArrival(values[i]);
+                }
+            }, valuesPerProducer, lockedLatencies);
+
+            final var sketch = new CountMinSketch(0.001, 0.01);
+            final var filter = new BloomFilter(0.01, 1000);
+            final var histogram = new ExponentialHistogram(0.01, 500);
+            final var ingestion = new SketchIngestion(1 << 16, 1024, List.of(sketch::addAll, filter::addAll, batch -> {
+                for (int value : batch) {
+                    histogram.addArrival(value);
+                }
+            }));
+            final var latencies = new long[producers][valuesPerProducer / 64];
+            final var start = System.nanoTime();
+            runProducers(producers, (producer, i) -> ingestion.publish(values[i]), valuesPerProducer, latencies);
+            final var count = ingestion.query(() -> sketch.count(500));
+            final var time = System.nanoTime() - start;
+            ingestion.close();
+
+            final var total = (double) producers * valuesPerProducer;
+            System.out.println("Round " + round + ": locked " + (int) (total / (lockedTime / 1e9)) + " values/s, p50 "
+                    + percentile(lockedLatencies, 0.5) + " ns, p99 " + percentile(lockedLatencies, 0.99) + " ns; ring "
+                    + (int) (total / (time / 1e9)) + " values/s, p50 " + percentile(latencies, 0.5) + " ns, p99 "
+                    + percentile(latencies, 0.99) + " ns");
+            System.out.println("Both give the same count of 500: " + (count == lockedSketch.count(500)));
+        }
+    }
+
+    private interface Producer {
+        void produce(int producer, int i);
+    }
+
+    /**
+     * Runs producer threads and measures the latency of every 64th value.
+     * @return the total time in nanoseconds
+     */
+    private static long runProducers(int producers, Producer producer, int valuesPerProducer, long[][] latencies) throws InterruptedException {
+        final var threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final var id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < valuesPerProducer; i++) {
+                    if ((i & 63) == 0 && i / 64 < latencies[id].length) {
+                        final var start = System.nanoTime();
+                        producer.produce(id, i);
+                        latencies[id][i / 64] = System.nanoTime() - start;
+                    } else {
+                        producer.produce(id, i);
+                    }
+                }
+            });
+        }
+        final var start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long percentile(long[][] latencies, double phi) {
+        final var all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return all[(int) (phi * (all.length - 1))];
+    }
+
+    public static void testThetaSketch(){
+        // users of two days, 400k of them active on both days
+        final var monday = new ThetaSketch(4096);
+        final var tuesday = new ThetaSketch(4096);
+        final var start = System.nanoTime();
+        for (int user = 0; user < 1_000_000; user++) {
+            monday.add(user);
+        }
+        for (int user = 600_000; user < 1_500_000; user++) {
+            tuesday.add(user);
+        }
+        System.out.println("Update: " + (System.nanoTime() - start) / 1_900_000 + " ns per value");
+        printThetaEstimate("Monday", monday, 1_000_000);
+        printThetaEstimate("Tuesday", tuesday, 900_000);
+        printThetaEstimate("Either day", monday.union(tuesday), 1_500_000);
+        printThetaEstimate("Both days", monday.intersect(tuesday), 400_000);
+        printThetaEstimate("Only monday", monday.aNotB(tuesday), 600_000);
+        printThetaEstimate("Restored monday", ThetaSketch.deserialize(monday.serialize()), 1_000_000);
+    }
+
+    private static void printThetaEstimate(String name, ThetaSketch sketch, int actual) {
+        System.out.println(name + ": " + (int) sketch.getEstimate() + " (actual: " + actual + ", 95% bounds: ["
+                + (int) sketch.getLowerBound(2) + ", " + (int) sketch.getUpperBound(2) + "])");
+    }
+
     public static void testDyadicIntervalCalculator(){
         final var range = new int[]{2, 452};
         final var intervals = DyadicIntervalCalculator.calculateDyadicIntervalsOverRange(range);
@@ -142,6 +823,30 @@ public class Main {
     /**
      * Tests the ExponentialHistograms algorithms.
      */
+    public static void testSumExponentialHistogram(){
+        final var maxWindow = 100_000;
+        final var histogram = new SumExponentialHistogram(0.01, maxWindow, 65535);
+        // bytes per request
+        int[] arrivals = generateRandomGaussians(10_000_000, 1500, 400);
+        final var start = System.nanoTime();
+        for (int arrival : arrivals) {
+            histogram.add(Math.max(0, Math.min(65535, arrival)));
+        }
+        System.out.println("Update: " + (System.nanoTime() - start) / arrivals.length + " ns per value");
+        for (int window : new int[]{1000, 10_000, maxWindow}) {
+            long actualSum = 0;
+            for (int i = arrivals.length - window; i < arrivals.length; i++) {
+                actualSum += Math.max(0, Math.min(65535, arrivals[i]));
+            }
+            final var estimatedSum = histogram.getSumEstimation(window);
+            System.out.println("Window " + window + ": sum " + (long) estimatedSum + " (actual: " + actualSum + ", error: "
+                    + String.format("%.4f", Math.abs(estimatedSum - actualSum) / actualSum) + "), mean "
+                    + String.format("%.1f", histogram.getMeanEstimation(window)) + " (actual: "
+                    + String.format("%.1f", (double) actualSum / window) + ")");
+        }
+        System.out.println(histogram.metricsSnapshot());
+    }
+
     public static void testExponentialHistograms(){
         final var window = 20000;
         final var histogram = new ExponentialHistogram(0.5, 1);
@@ -0,0 +1,62 @@
+package aggregation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire format between the aggregation server and its clients.
+ * Every request is a frame: a 4 byte length (of everything after it), a 1 byte opcode, the sketch name
+ * (2 byte length + UTF-8) and an opcode specific payload:
+ * - MERGE: a sketch serialized with its serialize() method, merged into the central copy, no response;
+ * - QUERY: a 4 byte value, answered with the count (count-min sketch), 0/1 (bloom filter) or the distinct count (FM sketch);
+ * - GET: no payload, answered with the serialized central copy;
+ * - FLUSH: no payload, answered once all earlier frames of the connection are handled, with ERROR if merges failed since
+ *   the previous FLUSH (the message says how many and why the last one failed).
+ * Every response is a frame with a 4 byte length, a 1 byte status and the payload (an error message if the status is ERROR).
+ * All numbers are big endian, the default of ByteBuffer.
+ */
+class Protocol {
+
+    static final byte MERGE = 1;
+    static final byte QUERY = 2;
+    static final byte GET = 3;
+    static final byte FLUSH = 4;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    static ByteBuffer request(byte opcode, String name, byte[] payload) {
+        final var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Sketch name is too long.");
+        }
+        final var length = 1 + Short.BYTES + nameBytes.length + payload.length;
+        final var frame = ByteBuffer.allocate(Integer.BYTES + length);
+        frame.putInt(length);
+        frame.put(opcode);
+        frame.putShort((short) nameBytes.length);
+        frame.put(nameBytes);
+        frame.put(payload);
+        return frame.flip();
+    }
+
+    static ByteBuffer response(byte status, byte[] payload) {
+        final var frame = ByteBuffer.allocate(Integer.BYTES + 1 + payload.length);
+        frame.putInt(1 + payload.length);
+        frame.put(status);
+        frame.put(payload);
+        return frame.flip();
+    }
+
+    static String readName(ByteBuffer frame) {
+        final var length = frame.getShort();
+        if (length < 0 || length > frame.remaining()) {
+            throw new IllegalArgumentException("Invalid sketch name length: " + length);
+        }
+        final var nameBytes = new byte[length];
+        frame.get(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+}
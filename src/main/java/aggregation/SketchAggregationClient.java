@@ -0,0 +1,230 @@
+package aggregation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The worker side of the {@link SketchAggregationServer}.
+ * Workers keep a local sketch, and periodically offer its serialized form as a delta to the client, which sends it to
+ * the server in the background. Offering never blocks: if the queue is full (because the server can't keep up),
+ * offerDelta returns false, and the worker should keep adding to its local sketch and offer it again later.
+ * Only after a successful offer should the worker clear its local sketch, so no updates are counted twice.
+ *
+ * A successful offer only means the delta was queued. {@link #flush()} sends a flush request after the queued deltas
+ * and waits for the server to answer it, which it does once it has handled all of them, so when flush returns normally
+ * every delta offered before it has been merged. A delta the server could not merge makes flush throw.
+ * If the connection fails, the deltas that were queued or being sent at that moment are lost (the server may or may not
+ * have merged them), and every later call throws. So a worker that can't afford to lose updates should keep its local
+ * sketch until a flush returns and resend it to a new client after a failure, accepting that some updates may be
+ * counted twice.
+ *
+ * The sender thread drains all queued deltas at once and writes them with a single gathering write.
+ */
+public class SketchAggregationClient implements AutoCloseable {
+
+    private static final int MAX_BATCH = 64;
+
+    private final SocketChannel channel;
+
+    private final BlockingQueue<ByteBuffer> pending;
+
+    private final Thread sender;
+
+    private final Object writeLock = new Object();
+
+    private final Object callLock = new Object();
+
+    private final ByteBuffer responseLength = ByteBuffer.allocate(Integer.BYTES);
+
+    // guarded by this
+    private long offered = 0;
+
+    // guarded by this
+    private long sent = 0;
+
+    private volatile IOException failure;
+
+    /**
+     * Connects to a server on the loopback interface.
+     * @param port the port of the server
+     * @param maxPendingDeltas the number of deltas that can be queued before offerDelta returns false
+     * @throws IOException if the connection fails
+     */
+    public SketchAggregationClient(int port, int maxPendingDeltas) throws IOException {
+        if (maxPendingDeltas <= 0) {
+            throw new IllegalArgumentException("maxPendingDeltas must be positive.");
+        }
+        this.channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+        this.pending = new ArrayBlockingQueue<>(maxPendingDeltas);
+        this.sender = new Thread(this::send, "sketch-aggregation-client");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Offers a serialized sketch to be merged into the central sketch with the given name, without blocking.
+     * @param name the name of the central sketch
+     * @param serializedSketch the result of serialize() of a count-min sketch, bloom filter or FM sketch
+     * @return true if the delta was queued, false if the queue is full and the delta should be offered again later
+     * @throws UncheckedIOException if sending an earlier delta failed
+     */
+    public boolean offerDelta(String name, byte[] serializedSketch) {
+        checkFailure();
+        final var frame = Protocol.request(Protocol.MERGE, name, serializedSketch);
+        synchronized (this) {
+            if (!pending.offer(frame)) {
+                return false;
+            }
+            offered++;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the server has merged all deltas offered so far.
+     * The deltas are written first, followed by a flush request, which the server answers once it has handled them,
+     * since it handles the frames of a connection in order.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if the connection fails
+     * @throws UncheckedIOException if sending failed, in which case some of those deltas may be lost
+     * @throws IllegalArgumentException if the server could not merge some of the deltas sent since the last flush
+     */
+    public void flush() throws InterruptedException, IOException {
+        synchronized (this) {
+            final var target = offered;
+            while (sent < target) {
+                checkFailure();
+                wait(10);
+            }
+        }
+        // not while holding this, so offerDelta does not wait for the server
+        call(Protocol.request(Protocol.FLUSH, "", new byte[0]));
+    }
+
+    private void send() {
+        final var batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+                final var buffers = batch.toArray(new ByteBuffer[0]);
+                synchronized (writeLock) {
+                    while (buffers[buffers.length - 1].hasRemaining()) {
+                        channel.write(buffers);
+                    }
+                }
+                synchronized (this) {
+                    sent += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            // the batch and everything still queued is lost, flush and all later calls report it
+            failure = e;
+            pending.clear();
+        }
+    }
+
+    /**
+     * Queries a central sketch: the count of a value for a count-min sketch, 1 or 0 for a bloom filter
+     * or the number of distinct values for an FM sketch.
+     * Deltas that were offered but not flushed may not be included.
+     * @param name the name of the central sketch
+     * @param value the value to query
+     * @return the result of the query
+     * @throws IOException if the connection fails
+     */
+    public long query(String name, int value) throws IOException {
+        final var payload = ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+        return ByteBuffer.wrap(call(Protocol.request(Protocol.QUERY, name, payload))).getLong();
+    }
+
+    /**
+     * Returns a copy of a central sketch, which can be deserialized with the deserialize method of its class.
+     * @param name the name of the central sketch
+     * @return the serialized sketch
+     * @throws IOException if the connection fails
+     */
+    public byte[] get(String name) throws IOException {
+        return call(Protocol.request(Protocol.GET, name, new byte[0]));
+    }
+
+    /**
+     * Sends a request and waits for its response. Only one call can wait for a response at a time.
+     * @param request the request frame
+     * @return the payload of the response
+     * @throws IOException if the connection fails
+     */
+    private byte[] call(ByteBuffer request) throws IOException {
+        checkFailure();
+        // not synchronized on this, so offerDelta never waits for a slow call
+        synchronized (callLock) {
+            synchronized (writeLock) {
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            }
+            return readResponse();
+        }
+    }
+
+    private byte[] readResponse() throws IOException {
+        responseLength.clear();
+        readFully(responseLength);
+        final var length = responseLength.flip().getInt();
+        if (length <= 0 || length > Protocol.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid response length: " + length);
+        }
+        final var response = ByteBuffer.allocate(length);
+        readFully(response);
+        response.flip();
+        final var status = response.get();
+        final var payload = new byte[response.remaining()];
+        response.get(payload);
+        if (status != Protocol.OK) {
+            throw new IllegalArgumentException(new String(payload, StandardCharsets.UTF_8));
+        }
+        return payload;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("The server closed the connection.");
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Sending to the server failed.", failure);
+        }
+    }
+
+    /**
+     * Stops the sender thread and closes the connection. Deltas that were not flushed are dropped.
+     * @throws IOException if closing the connection fails
+     */
+    @Override
+    public void close() throws IOException {
+        sender.interrupt();
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,380 @@
+package aggregation;
+
+import bloomfilters.BloomFilter;
+import cmsketch.CountMinSketch;
+import fmsketches.FMsketch;
+import utils.SketchSerialization;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A small server that merges the sketches of many worker processes on the same host into central copies.
+ * Workers send serialized sketch deltas (see {@link SketchAggregationClient}), which are merged by name,
+ * and can query the central copies. Count-min sketches, bloom filters and FM sketches are supported.
+ *
+ * The server only listens on the loopback interface and runs a single non-blocking NIO selector loop.
+ * All merging happens on that thread, so the central sketches need no locking.
+ * If merging can't keep up, the server reads slower, the TCP buffers fill up and the clients notice this as backpressure.
+ * The same happens to a client that doesn't read its responses: once too many are waiting, its requests are not read.
+ *
+ * Deltas are untrusted input: their declared dimensions are checked against {@link SketchSerialization#getMaxDecodedBytes()}
+ * before anything is allocated. A request that fails, even with an error such as an OutOfMemoryError, is rejected on its
+ * own, and a connection that fails is dropped, without affecting the other connections.
+ */
+public class SketchAggregationServer implements AutoCloseable {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    // a connection whose responses take more than this is not read until the client catches up
+    private static final long MAX_PENDING_RESPONSE_BYTES = 16 * 1024 * 1024;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Thread thread;
+
+    // only accessed by the selector thread
+    private final Map<String, Object> sketches = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    private volatile long mergedDeltas = 0;
+
+    private volatile long rejectedFrames = 0;
+
+    /**
+     * A connected client, with its partially read request and the responses that still have to be written.
+     */
+    private static class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        // the bytes of the responses in out
+        private long outBytes = 0;
+        // the merges that failed since the last flush, which have no response of their own
+        private long failedMerges = 0;
+        private String lastFailure;
+    }
+
+    /**
+     * Starts a server on the loopback interface.
+     * @param port the port to listen on, or 0 to pick a free port
+     * @throws IOException if the port can't be bound
+     */
+    public SketchAggregationServer(int port) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "sketch-aggregation-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getMergedDeltas() {
+        return mergedDeltas;
+    }
+
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            final var iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                final var key = iterator.next();
+                iterator.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(key);
+                    }
+                } catch (IOException e) {
+                    // the client went away, drop the connection
+                    closeConnection(key);
+                } catch (RuntimeException | Error e) {
+                    // e.g. no memory for the read buffer of a large frame, only this connection is affected
+                    rejectedFrames++;
+                    closeConnection(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final var channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    /**
+     * Reads what is available and handles every complete frame.
+     * @param key the key of the connection
+     * @throws IOException if reading fails
+     */
+    private void read(SelectionKey key) throws IOException {
+        final var channel = (SocketChannel) key.channel();
+        final var connection = (Connection) key.attachment();
+        if (channel.read(connection.in) == -1) {
+            closeConnection(key);
+            return;
+        }
+        handleFrames(key);
+    }
+
+    /**
+     * Handles the complete frames that were read, until too many responses are waiting to be written.
+     * @param key the key of the connection
+     */
+    private void handleFrames(SelectionKey key) {
+        final var connection = (Connection) key.attachment();
+        final var in = connection.in;
+        in.flip();
+        while (in.remaining() >= Integer.BYTES && connection.outBytes < MAX_PENDING_RESPONSE_BYTES) {
+            final var length = in.getInt(in.position());
+            if (length <= 0 || length > Protocol.MAX_FRAME_SIZE) {
+                // we can't find the next frame anymore, so the connection is useless
+                rejectedFrames++;
+                closeConnection(key);
+                return;
+            }
+            if (in.remaining() < Integer.BYTES + length) {
+                break;
+            }
+            final var frame = in.slice();
+            frame.position(Integer.BYTES).limit(Integer.BYTES + length);
+            in.position(in.position() + Integer.BYTES + length);
+            final var response = handle(frame.slice(), connection);
+            if (response != null) {
+                connection.out.add(response);
+                connection.outBytes += response.remaining();
+            }
+        }
+        in.compact();
+        // make sure the next frame fits
+        if (in.position() >= Integer.BYTES) {
+            final var needed = Integer.BYTES + in.getInt(0);
+            if (needed > in.capacity() && needed <= Integer.BYTES + Protocol.MAX_FRAME_SIZE) {
+                final var bigger = ByteBuffer.allocate(needed);
+                in.flip();
+                bigger.put(in);
+                connection.in = bigger;
+            }
+        }
+        if (connection.outBytes >= MAX_PENDING_RESPONSE_BYTES) {
+            // stop reading until the responses are written, the client sees this as backpressure
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (!connection.out.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        final var channel = (SocketChannel) key.channel();
+        final var connection = (Connection) key.attachment();
+        final var wasFull = connection.outBytes >= MAX_PENDING_RESPONSE_BYTES;
+        while (!connection.out.isEmpty()) {
+            final var response = connection.out.peek();
+            final var written = channel.write(response);
+            connection.outBytes -= written;
+            if (response.hasRemaining()) {
+                return;
+            }
+            connection.out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (wasFull) {
+            // frames may be waiting in the read buffer, and no read event will come for them
+            handleFrames(key);
+        }
+    }
+
+    /**
+     * Handles a single request. A request that fails is rejected with an error response,
+     * except for a merge, whose failure is reported by the next flush of the connection.
+     * @param frame the frame, without its length
+     * @param connection the connection the frame came from
+     * @return the response, or null if the request has none
+     */
+    private ByteBuffer handle(ByteBuffer frame, Connection connection) {
+        final var opcode = frame.get();
+        try {
+            final var name = Protocol.readName(frame);
+            switch (opcode) {
+                case Protocol.MERGE: {
+                    final var bytes = new byte[frame.remaining()];
+                    frame.get(bytes);
+                    merge(name, bytes);
+                    mergedDeltas++;
+                    return null;
+                }
+                case Protocol.QUERY: {
+                    final var result = query(name, frame.getInt());
+                    return Protocol.response(Protocol.OK, ByteBuffer.allocate(Long.BYTES).putLong(result).array());
+                }
+                case Protocol.GET:
+                    return Protocol.response(Protocol.OK, serialize(getSketch(name)));
+                case Protocol.FLUSH: {
+                    // frames are handled in order, so every earlier merge of this connection has been applied
+                    final var failed = connection.failedMerges;
+                    connection.failedMerges = 0;
+                    if (failed > 0) {
+                        final var message = failed + " merges failed, the last one with: " + connection.lastFailure;
+                        return Protocol.response(Protocol.ERROR, message.getBytes(StandardCharsets.UTF_8));
+                    }
+                    return Protocol.response(Protocol.OK, new byte[0]);
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown opcode: " + opcode);
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // the memory of a failed request is garbage again, so the other requests can go on
+            rejectedFrames++;
+            if (opcode == Protocol.MERGE) {
+                // merges have no response, the client hears about it when it flushes
+                connection.failedMerges++;
+                connection.lastFailure = String.valueOf(e.getMessage());
+                return null;
+            }
+            final var message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            return Protocol.response(Protocol.ERROR, message);
+        }
+    }
+
+    private void merge(String name, byte[] bytes) {
+        final var central = sketches.get(name);
+        switch (SketchSerialization.peekType(bytes)) {
+            case COUNT_MIN_SKETCH: {
+                final var delta = CountMinSketch.deserialize(bytes);
+                if (central == null) {
+                    sketches.put(name, delta);
+                } else {
+                    cast(central, CountMinSketch.class, name).merge(delta);
+                }
+                break;
+            }
+            case BLOOM_FILTER: {
+                final var delta = BloomFilter.deserialize(bytes);
+                if (central == null) {
+                    sketches.put(name, delta);
+                } else {
+                    cast(central, BloomFilter.class, name).merge(delta);
+                }
+                break;
+            }
+            case FM_SKETCH: {
+                final var delta = FMsketch.deserialize(bytes);
+                if (central == null) {
+                    sketches.put(name, delta);
+                } else {
+                    cast(central, FMsketch.class, name).merge(delta);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Sketches of type " + SketchSerialization.peekType(bytes) + " can't be merged.");
+        }
+    }
+
+    private long query(String name, int value) {
+        final var sketch = getSketch(name);
+        if (sketch instanceof CountMinSketch) {
+            return ((CountMinSketch) sketch).count(value);
+        }
+        if (sketch instanceof BloomFilter) {
+            return ((BloomFilter) sketch).contains(value) ? 1 : 0;
+        }
+        return ((FMsketch) sketch).countDistinct();
+    }
+
+    private static byte[] serialize(Object sketch) {
+        if (sketch instanceof CountMinSketch) {
+            return ((CountMinSketch) sketch).serialize();
+        }
+        if (sketch instanceof BloomFilter) {
+            return ((BloomFilter) sketch).serialize();
+        }
+        return ((FMsketch) sketch).serialize();
+    }
+
+    private Object getSketch(String name) {
+        final var sketch = sketches.get(name);
+        if (sketch == null) {
+            throw new IllegalArgumentException("Unknown sketch: " + name);
+        }
+        return sketch;
+    }
+
+    private static <T> T cast(Object sketch, Class<T> type, String name) {
+        if (!type.isInstance(sketch)) {
+            throw new IllegalArgumentException("Sketch " + name + " is a " + sketch.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+        }
+        return type.cast(sketch);
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Stops the selector loop and closes all connections.
+     * @throws IOException if closing the server socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.channel() != serverChannel) {
+                closeConnection(key);
+            }
+        }
+        serverChannel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,265 @@
+package bloomfilters;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A binary fuse filter (Graf and Lemire, 2022) for sets of keys that are known up front and never change.
+ * Like a bloom filter it answers containment queries with false positives, but it needs about 1.13 * log2(1/FPR) bits
+ * per key instead of 1.44 * log2(1/FPR), and a query always reads exactly three fingerprints.
+ *
+ * Every key is hashed to three positions in the fingerprint array, one in each of three consecutive segments,
+ * and the filter is built so that the XOR of the three fingerprints equals the fingerprint of the key.
+ * For a key that was not added, the XOR matches by chance with probability 2^-fingerprintBits.
+ * Building works by "peeling": a position that only a single key maps to can be assigned last, so we repeatedly
+ * remove such keys, and afterwards assign the fingerprints in reverse order. With the segmented layout this succeeds
+ * with high probability, and if it does not we retry with another seed.
+ *
+ * Hashing, sorting and deduplicating the keys is done in parallel, which is a large part of the work for large key sets.
+ */
+public class BinaryFuseFilter {
+
+    private static final int ARITY = 3;
+    private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+    private static final int MAX_ATTEMPTS = 100;
+
+    private final long seed;
+    private final int segmentLength;
+    private final int segmentLengthMask;
+    private final int segmentCountLength;
+    private final int fingerprintBits;
+
+    // exactly one of the two is used, depending on fingerprintBits
+    private final byte[] fingerprints8;
+    private final short[] fingerprints16;
+
+    /**
+     * Builds a binary fuse filter from a set of int keys.
+     * @param falsePositiveRate the maximum false positive rate, at least 1/65536
+     * @param keys the keys, duplicates are allowed
+     */
+    public BinaryFuseFilter(double falsePositiveRate, int[] keys) {
+        this(falsePositiveRate, IntStream.range(0, keys.length).parallel().mapToLong(i -> keys[i]).toArray());
+    }
+
+    /**
+     * Builds a binary fuse filter from a set of long keys.
+     * @param falsePositiveRate the maximum false positive rate, at least 1/65536
+     * @param keys the keys, duplicates are allowed
+     */
+    public BinaryFuseFilter(double falsePositiveRate, long[] keys) {
+        if (falsePositiveRate >= 1.0 / 256) {
+            this.fingerprintBits = 8;
+        } else if (falsePositiveRate >= 1.0 / 65536) {
+            this.fingerprintBits = 16;
+        } else {
+            throw new IllegalArgumentException("The false positive rate must be at least 1/65536.");
+        }
+        final var random = new Random();
+        var seed = random.nextLong();
+        var hashes = distinctHashes(keys, seed);
+        final var size = hashes.length;
+        final var segmentLength = size == 0 ? 4 : Math.min(MAX_SEGMENT_LENGTH, 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25));
+        final var sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1_000_000) / Math.log(size));
+        final var capacity = (int) Math.round(size * sizeFactor);
+        final var initSegmentCount = (capacity + segmentLength - 1) / segmentLength - (ARITY - 1);
+        var arrayLength = (initSegmentCount + ARITY - 1) * segmentLength;
+        var segmentCount = (arrayLength + segmentLength - 1) / segmentLength;
+        segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+        arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+        this.segmentLength = segmentLength;
+        this.segmentLengthMask = segmentLength - 1;
+        this.segmentCountLength = segmentCount * segmentLength;
+
+        final var fingerprints = new long[arrayLength];
+        for (int attempt = 0; !populate(hashes, fingerprints); attempt++) {
+            if (attempt == MAX_ATTEMPTS) {
+                throw new IllegalStateException("Could not build the filter, this should practically never happen.");
+            }
+            seed = random.nextLong();
+            hashes = distinctHashes(keys, seed);
+        }
+        this.seed = seed;
+        if (fingerprintBits == 8) {
+            this.fingerprints8 = new byte[arrayLength];
+            this.fingerprints16 = null;
+            for (int i = 0; i < arrayLength; i++) {
+                fingerprints8[i] = (byte) fingerprints[i];
+            }
+        } else {
+            this.fingerprints8 = null;
+            this.fingerprints16 = new short[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                fingerprints16[i] = (short) fingerprints[i];
+            }
+        }
+    }
+
+    /**
+     * Hashes all keys with the given seed, sorts the hashes and removes duplicates.
+     * The hash is a bijection on 64 bit values, so equal hashes mean equal keys, which can never be peeled.
+     * Sorting also means that the keys are later visited in the order of their first position, which is cache friendly.
+     * @param keys the keys to hash
+     * @param seed the seed of the hash
+     * @return the sorted, distinct hashes
+     */
+    private static long[] distinctHashes(long[] keys, long seed) {
+        final var hashes = new long[keys.length];
+        Arrays.parallelSetAll(hashes, i -> mix(keys[i] + seed));
+        Arrays.parallelSort(hashes);
+        int distinct = hashes.length == 0 ? 0 : 1;
+        for (int i = 1; i < hashes.length; i++) {
+            if (hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        return distinct == hashes.length ? hashes : Arrays.copyOf(hashes, distinct);
+    }
+
+    /**
+     * Tries to build the fingerprints for a set of hashes.
+     * @param hashes the distinct hashes of the keys
+     * @param fingerprints the array to fill
+     * @return true if peeling succeeded, false if another seed is needed
+     */
+    private boolean populate(long[] hashes, long[] fingerprints) {
+        final var size = hashes.length;
+        final var capacity = fingerprints.length;
+        // per position: the number of keys (times 4) and the XOR of which of their three positions it is (low 2 bits)
+        final var counts = new int[capacity];
+        // per position: the XOR of the hashes of all keys that map to it, which is the hash itself if there is only one
+        final var xorHashes = new long[capacity];
+        final var positions = new int[ARITY];
+        for (long hash : hashes) {
+            positions(hash, positions);
+            for (int j = 0; j < ARITY; j++) {
+                counts[positions[j]] += 4;
+                counts[positions[j]] ^= j;
+                xorHashes[positions[j]] ^= hash;
+            }
+        }
+
+        // the queue of positions that have a single key left
+        final var alone = new int[capacity];
+        int queueSize = 0;
+        for (int i = 0; i < capacity; i++) {
+            if ((counts[i] >> 2) == 1) {
+                alone[queueSize++] = i;
+            }
+        }
+        // the peeled keys and at which of their positions they were alone
+        final var stackHashes = new long[size];
+        final var stackFound = new byte[size];
+        int stackSize = 0;
+        while (queueSize > 0) {
+            final var index = alone[--queueSize];
+            if ((counts[index] >> 2) != 1) {
+                continue;
+            }
+            final var hash = xorHashes[index];
+            final var found = counts[index] & 3;
+            stackHashes[stackSize] = hash;
+            stackFound[stackSize++] = (byte) found;
+            positions(hash, positions);
+            for (int j = 0; j < ARITY; j++) {
+                if (j == found) {
+                    continue;
+                }
+                final var other = positions[j];
+                counts[other] -= 4;
+                counts[other] ^= j;
+                xorHashes[other] ^= hash;
+                if ((counts[other] >> 2) == 1) {
+                    alone[queueSize++] = other;
+                }
+            }
+            counts[index] = 0;
+        }
+        if (stackSize != size) {
+            return false;
+        }
+
+        // assign in reverse order, so the position of every key is still free when we get to it
+        Arrays.fill(fingerprints, 0);
+        for (int i = size - 1; i >= 0; i--) {
+            final var hash = stackHashes[i];
+            final var found = stackFound[i];
+            positions(hash, positions);
+            long fingerprint = fingerprint(hash);
+            for (int j = 0; j < ARITY; j++) {
+                if (j != found) {
+                    fingerprint ^= fingerprints[positions[j]];
+                }
+            }
+            fingerprints[positions[found]] = fingerprint & ((1L << fingerprintBits) - 1);
+        }
+        return true;
+    }
+
+    public boolean contains(int key) {
+        return contains((long) key);
+    }
+
+    /**
+     * Checks if the filter contains a key.
+     * @param key the key to check
+     * @return true if the key is in the filter, false otherwise (FPs possible)
+     */
+    public boolean contains(long key) {
+        final var hash = mix(key + seed);
+        final var h0 = firstPosition(hash);
+        final var h1 = (h0 + segmentLength) ^ (int) ((hash >>> 18) & segmentLengthMask);
+        final var h2 = (h0 + 2 * segmentLength) ^ (int) (hash & segmentLengthMask);
+        if (fingerprints8 != null) {
+            return (byte) fingerprint(hash) == (byte) (fingerprints8[h0] ^ fingerprints8[h1] ^ fingerprints8[h2]);
+        }
+        return (short) fingerprint(hash) == (short) (fingerprints16[h0] ^ fingerprints16[h1] ^ fingerprints16[h2]);
+    }
+
+    /**
+     * Returns the number of bits the filter uses per key.
+     * @param numberOfKeys the number of distinct keys the filter was built from
+     * @return the bits per key
+     */
+    public double bitsPerKey(int numberOfKeys) {
+        final var length = fingerprints8 != null ? fingerprints8.length : fingerprints16.length;
+        return (double) length * fingerprintBits / numberOfKeys;
+    }
+
+    private void positions(long hash, int[] positions) {
+        final var h0 = firstPosition(hash);
+        positions[0] = h0;
+        positions[1] = (h0 + segmentLength) ^ (int) ((hash >>> 18) & segmentLengthMask);
+        positions[2] = (h0 + 2 * segmentLength) ^ (int) (hash & segmentLengthMask);
+    }
+
+    /**
+     * Maps a hash to a position in the first segmentCount segments, with an unsigned multiply-high instead of a modulo.
+     * @param hash the hash of a key
+     * @return the first position of the key
+     */
+    private int firstPosition(long hash) {
+        final long length = segmentCountLength;
+        return (int) (Math.multiplyHigh(hash, length) + ((hash >> 63) & length));
+    }
+
+    private static long fingerprint(long hash) {
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of the key over the whole hash.
+     * Every step is invertible, so different keys always get different hashes.
+     * @param key the key to hash
+     * @return the hash
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
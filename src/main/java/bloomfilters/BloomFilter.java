@@ -1,7 +1,15 @@
 package bloomfilters;
 
+import metrics.Instrumented;
+import utils.BatchHasher;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Bloom filters are used for containment queries.
@@ -14,10 +22,16 @@ import utils.HashUtils;
  * This is why bloom filters have a false positive rate and allow a trade off between space complexity and accuracy.
  * The more bits we use, the less false positives we get.
  * Similarly, the more hash functions we use the smaller the probability of false positives given a large enough array.
+ *
+ * The bits are packed into 64 bit words, so that set operations and counting bits work on 64 bits at a time.
  */
-public class BloomFilter {
-    private final boolean[] bloomFilter;
+public class BloomFilter implements Instrumented {
+    // bit i is bit (i % 64) of word i / 64
+    private final long[] bloomFilter;
+    // the number of bits
+    private final int size;
     private final HashFunction[] hashFunctions;
+    private final BatchHasher batchHasher;
 
     /**
      * Creates a new bloom filter.
@@ -29,12 +43,35 @@ public class BloomFilter {
      */
     public BloomFilter(double falsePositiveRate, int n) {
         // size of the bloom filter
-        int m = (int) Math.ceil(n * Math.log(falsePositiveRate) / Math.log(0.6185));
+        int m = bits(falsePositiveRate, n);
         // number of hash functions
         int k = (int) Math.ceil(Math.log(2) * (m / n));
 
-        this.bloomFilter = new boolean[m];
+        this.bloomFilter = new long[(m + 63) >>> 6];
+        this.size = m;
         this.hashFunctions = HashUtils.getHashFunctions(k);
+        this.batchHasher = new BatchHasher(hashFunctions);
+    }
+
+    private static int bits(double falsePositiveRate, int n) {
+        return (int) Math.ceil(n * Math.log(falsePositiveRate) / Math.log(0.6185));
+    }
+
+    /**
+     * Returns the memory the bits of a filter with the given parameters take, without creating it.
+     * @param falsePositiveRate the false positive rate of the filter
+     * @param n an estimation of the number of distinct values to be added to the filter
+     * @return the size in bytes
+     */
+    public static long sizeInBytes(double falsePositiveRate, int n) {
+        return (long) ((bits(falsePositiveRate, n) + 63) >>> 6) * Long.BYTES;
+    }
+
+    private BloomFilter(long[] bloomFilter, int size, HashFunction[] hashFunctions) {
+        this.bloomFilter = bloomFilter;
+        this.size = size;
+        this.hashFunctions = hashFunctions;
+        this.batchHasher = new BatchHasher(hashFunctions);
     }
 
     /**
@@ -44,7 +81,7 @@ public class BloomFilter {
      */
     public void add(int value) {
         for (HashFunction hashFunction : hashFunctions) {
-            bloomFilter[(int) hashFunction.hash(value, bloomFilter.length)] = true;
+            set((int) hashFunction.hash(value, size));
         }
     }
 
@@ -55,10 +92,210 @@ public class BloomFilter {
      */
     public boolean contains(int value) {
         for (HashFunction hashFunction : hashFunctions) {
-            if (!bloomFilter[(int) hashFunction.hash(value, bloomFilter.length)]) {
+            if (!get((int) hashFunction.hash(value, size))) {
                 return false;
             }
         }
         return true;
     }
+
+    /**
+     * Adds a batch of values to the bloom filter.
+     * The values are hashed in blocks, one hash function at a time, with the {@link BatchHasher}.
+     * @param values the values to add to the filter
+     */
+    public void addAll(int[] values) {
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < hashFunctions.length; row++) {
+                for (int i = from; i < to; i++) {
+                    set(batchHasher.hash(row, values[i], size));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks for a batch of values if the bloom filter contains them.
+     * @param values the values to check
+     * @return for every value, true if it is in the filter, false otherwise (FPs possible)
+     */
+    public boolean[] containsAll(int[] values) {
+        final var contains = new boolean[values.length];
+        Arrays.fill(contains, true);
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < hashFunctions.length; row++) {
+                for (int i = from; i < to; i++) {
+                    contains[i] &= get(batchHasher.hash(row, values[i], size));
+                }
+            }
+        }
+        return contains;
+    }
+
+    private void set(int index) {
+        bloomFilter[index >>> 6] |= 1L << index;
+    }
+
+    private boolean get(int index) {
+        return (bloomFilter[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Merges another bloom filter into this one, after which it contains the values of both.
+     * @param other the filter to merge, which must have the same size and hash functions
+     */
+    public void merge(BloomFilter other) {
+        checkSameShape(other);
+        for (int i = 0; i < bloomFilter.length; i++) {
+            bloomFilter[i] |= other.bloomFilter[i];
+        }
+    }
+
+    /**
+     * Returns the union of two filters, which is the same as the filter of the union of their values.
+     * @param other the other filter, which must have the same size and hash functions
+     * @return a new filter that contains the values of both filters
+     */
+    public BloomFilter union(BloomFilter other) {
+        checkSameShape(other);
+        final var union = new long[bloomFilter.length];
+        for (int i = 0; i < union.length; i++) {
+            union[i] = bloomFilter[i] | other.bloomFilter[i];
+        }
+        return new BloomFilter(union, size, hashFunctions);
+    }
+
+    /**
+     * Returns the intersection of two filters.
+     * Every value in both filters is in the intersection, but the intersection can have more bits set than the filter
+     * of the values in both, because a bit can be set in both filters by different values.
+     * Its false positive rate is at most that of the filter with the fewest bits set.
+     * @param other the other filter, which must have the same size and hash functions
+     * @return a new filter that contains the values that are in both filters
+     */
+    public BloomFilter intersect(BloomFilter other) {
+        checkSameShape(other);
+        final var intersection = new long[bloomFilter.length];
+        for (int i = 0; i < intersection.length; i++) {
+            intersection[i] = bloomFilter[i] & other.bloomFilter[i];
+        }
+        return new BloomFilter(intersection, size, hashFunctions);
+    }
+
+    /**
+     * Returns the number of bits that are set.
+     * @return the number of bits set
+     */
+    public int bitCount() {
+        int bitCount = 0;
+        for (long word : bloomFilter) {
+            bitCount += Long.bitCount(word);
+        }
+        return bitCount;
+    }
+
+    /**
+     * Estimates the number of distinct values that were added to the filter from the number of bits set.
+     * After adding n values, a bit is still unset with probability (1 - 1/m)^(kn) ≈ e^(-kn/m), so the number of bits set
+     * is about m * (1 - e^(-kn/m)), which gives n ≈ -m/k * ln(1 - bitsSet/m) (Swamidass and Baldi, 2007).
+     * @return the estimated number of distinct values, or infinity if every bit is set
+     */
+    public double estimateCardinality() {
+        return estimateCardinality(bitCount());
+    }
+
+    /**
+     * Estimates the number of distinct values in the union of two filters, without building the union.
+     * @param other the other filter, which must have the same size and hash functions
+     * @return the estimated number of distinct values in either filter
+     */
+    public double estimateUnionSize(BloomFilter other) {
+        checkSameShape(other);
+        int bitCount = 0;
+        for (int i = 0; i < bloomFilter.length; i++) {
+            bitCount += Long.bitCount(bloomFilter[i] | other.bloomFilter[i]);
+        }
+        return estimateCardinality(bitCount);
+    }
+
+    /**
+     * Estimates the number of distinct values in both filters by inclusion-exclusion: |A ∩ B| = |A| + |B| - |A ∪ B|.
+     * The union is estimated exactly like a single filter, because the union of the filters is the filter of the union.
+     * The estimate is poor when the intersection is small compared to the union, since it is then the difference of
+     * large estimates.
+     * @param other the other filter, which must have the same size and hash functions
+     * @return the estimated number of distinct values in both filters
+     */
+    public double estimateIntersectionSize(BloomFilter other) {
+        final var intersection = estimateCardinality() + other.estimateCardinality() - estimateUnionSize(other);
+        return Double.isNaN(intersection) ? Double.POSITIVE_INFINITY : Math.max(0, intersection);
+    }
+
+    private double estimateCardinality(int bitCount) {
+        if (bitCount == size) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return -(double) size / hashFunctions.length * Math.log1p(-(double) bitCount / size);
+    }
+
+    private void checkSameShape(BloomFilter other) {
+        if (other.size != size || !HashUtils.sameHashFunctions(hashFunctions, other.hashFunctions)) {
+            throw new IllegalArgumentException("Can only combine bloom filters with the same size and hash functions.");
+        }
+    }
+
+    /**
+     * Resets the filter, so it is empty again.
+     */
+    public void clear() {
+        Arrays.fill(bloomFilter, 0);
+    }
+
+    /**
+     * Serializes the filter into the compact binary format of {@link SketchSerialization}.
+     * @return the serialized filter
+     */
+    public byte[] serialize() {
+        final var payloadSize = SketchSerialization.hashFunctionsSize(hashFunctions) + Integer.BYTES + SketchSerialization.wordsSize(bloomFilter);
+        final var buffer = SketchSerialization.allocate(SketchType.BLOOM_FILTER, payloadSize);
+        SketchSerialization.writeHashFunctions(buffer, hashFunctions);
+        buffer.putInt(size);
+        SketchSerialization.writeWords(buffer, bloomFilter);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a filter that was serialized with {@link #serialize()}.
+     * @param bytes the serialized filter
+     * @return the restored filter
+     */
+    public static BloomFilter deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.BLOOM_FILTER);
+        final var hashFunctions = SketchSerialization.readHashFunctions(buffer);
+        final var size = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE, "filter size");
+        final var bloomFilter = SketchSerialization.readWords(buffer, size);
+        SketchSerialization.checkFullyRead(buffer);
+        return new BloomFilter(bloomFilter, size, hashFunctions);
+    }
+
+    /**
+     * Reports the fill ratio of the filter and the false positive rate that follows from it.
+     * A query for an unseen value is a false positive if all its k bits are set, which happens with probability fillRatio^k.
+     * @return the metrics of the filter
+     */
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        final var bitsSet = bitCount();
+        final var fillRatio = (double) bitsSet / size;
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("size", size);
+        snapshot.put("hashFunctions", hashFunctions.length);
+        snapshot.put("bitsSet", bitsSet);
+        snapshot.put("fillRatio", fillRatio);
+        snapshot.put("estimatedFalsePositiveRate", Math.pow(fillRatio, hashFunctions.length));
+        snapshot.put("estimatedCardinality", estimateCardinality(bitsSet));
+        return snapshot;
+    }
 }
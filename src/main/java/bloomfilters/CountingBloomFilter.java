@@ -1,12 +1,18 @@
 package bloomfilters;
 
+import metrics.Instrumented;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * similar to a bloom filter but uses counts in order to support deletion
  */
-public class CountingBloomFilter {
+public class CountingBloomFilter implements Instrumented {
 
     private final short[] countingBloomFilter;
     private final HashFunction[] hashFunctions;
@@ -29,6 +35,11 @@ public class CountingBloomFilter {
         this.hashFunctions = HashUtils.getHashFunctions(k);
     }
 
+    private CountingBloomFilter(short[] countingBloomFilter, HashFunction[] hashFunctions) {
+        this.countingBloomFilter = countingBloomFilter;
+        this.hashFunctions = hashFunctions;
+    }
+
     /**
      * Adds a value to the bloom filter.
      * Hashes the value for each hash function and set the corresponding bit to 1.
@@ -64,4 +75,58 @@ public class CountingBloomFilter {
             countingBloomFilter[(int) hashFunction.hash(value, countingBloomFilter.length)] -= 1;
         }
     }
+
+    /**
+     * Serializes the filter into the compact binary format of {@link SketchSerialization}.
+     * @return the serialized filter
+     */
+    public byte[] serialize() {
+        final var size = SketchSerialization.hashFunctionsSize(hashFunctions) + SketchSerialization.countersSize(countingBloomFilter);
+        final var buffer = SketchSerialization.allocate(SketchType.COUNTING_BLOOM_FILTER, size);
+        SketchSerialization.writeHashFunctions(buffer, hashFunctions);
+        SketchSerialization.writeCounters(buffer, countingBloomFilter);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a filter that was serialized with {@link #serialize()}.
+     * @param bytes the serialized filter
+     * @return the restored filter
+     */
+    public static CountingBloomFilter deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.COUNTING_BLOOM_FILTER);
+        final var hashFunctions = SketchSerialization.readHashFunctions(buffer);
+        final var countingBloomFilter = SketchSerialization.readShortCounters(buffer, -1);
+        if (countingBloomFilter.length == 0) {
+            throw new IllegalArgumentException("A filter needs at least one cell.");
+        }
+        SketchSerialization.checkFullyRead(buffer);
+        return new CountingBloomFilter(countingBloomFilter, hashFunctions);
+    }
+
+    /**
+     * Reports the fill ratio and estimated false positive rate, like the bloom filter.
+     * The largest counter is reported as well, since a short counter that overflows corrupts the filter.
+     * @return the metrics of the filter
+     */
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        int nonZeroCounters = 0;
+        int maxCounter = 0;
+        for (short counter : countingBloomFilter) {
+            if (counter != 0) {
+                nonZeroCounters++;
+            }
+            maxCounter = Math.max(maxCounter, counter);
+        }
+        final var fillRatio = (double) nonZeroCounters / countingBloomFilter.length;
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("size", countingBloomFilter.length);
+        snapshot.put("hashFunctions", hashFunctions.length);
+        snapshot.put("nonZeroCounters", nonZeroCounters);
+        snapshot.put("fillRatio", fillRatio);
+        snapshot.put("estimatedFalsePositiveRate", Math.pow(fillRatio, hashFunctions.length));
+        snapshot.put("maxCounter", maxCounter);
+        return snapshot;
+    }
 }
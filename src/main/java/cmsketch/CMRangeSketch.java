@@ -3,14 +3,21 @@ package cmsketch;
 import utils.DyadicIntervalCalculator;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class CMRangeSketch {
 
     private final CountMinSketch[] sketches;
 
+    private final int[] domain;
+
     public CMRangeSketch(double epsilon, double delta, int[] domain) {
+        this.domain = domain.clone();
         int numberOfSketches = DyadicIntervalCalculator.getPowerOfTwoFromInterval(domain);
         this.sketches = new CountMinSketch[numberOfSketches];
         for (int i = 0; i < numberOfSketches; i++) {
@@ -19,6 +26,11 @@ public class CMRangeSketch {
         }
     }
 
+    private CMRangeSketch(CountMinSketch[] sketches, int[] domain) {
+        this.sketches = sketches;
+        this.domain = domain;
+    }
+
     public void updateSketches(int value) {
         for (int level = 0; level < sketches.length; level++) {
             // Calculate the range for the current level
@@ -42,6 +54,99 @@ public class CMRangeSketch {
         return count;
     }
 
+    /**
+     * Returns the estimated rank of a value: the number of arrivals that are smaller than or equal to it.
+     * The prefix [domain[0], value] is split into aligned dyadic intervals, at most two per level,
+     * so this costs O(log domain) sketch probes.
+     * @param value the value to rank
+     * @return the estimated rank
+     */
+    public long rank(int value) {
+        if (value < domain[0] || sketches.length == 0) {
+            return 0;
+        }
+        long rank = 0;
+        for (int[] block : alignedBlocks(domain[0], Math.min(value, domain[1]))) {
+            rank += blockCount(block[0], block[1]);
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the estimated phi-quantile: the smallest value whose rank is at least phi times the number of arrivals.
+     * We walk the aligned dyadic intervals of the domain from left to right until we reach the one that holds the quantile,
+     * and then descend into it, every step deciding whether the quantile is in the left or the right half.
+     * Both take O(log domain) sketch probes.
+     * @param phi the quantile to look for, between 0 and 1 (0.5 is the median)
+     * @return the estimated quantile
+     */
+    public int quantile(double phi) {
+        if (phi < 0 || phi > 1) {
+            throw new IllegalArgumentException("phi must be between 0 and 1.");
+        }
+        if (sketches.length == 0) {
+            return domain[0];
+        }
+        final var blocks = alignedBlocks(domain[0], domain[1]);
+        final var counts = new long[blocks.size()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = blockCount(blocks.get(i)[0], blocks.get(i)[1]);
+            total += counts[i];
+        }
+        final var target = Math.max(1, (long) Math.ceil(phi * total));
+        long rank = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (rank + counts[i] < target) {
+                rank += counts[i];
+                continue;
+            }
+            // the quantile is in this interval
+            int prefix = blocks.get(i)[0];
+            for (int y = blocks.get(i)[1] - 1; y >= 0; y--) {
+                final var count = blockCount(prefix, y);
+                if (rank + count < target) {
+                    rank += count;
+                    prefix += 1 << y;
+                }
+            }
+            return prefix;
+        }
+        return domain[1];
+    }
+
+    /**
+     * Splits a range into dyadic intervals [x * 2^y + 1, (x + 1) * 2^y] of the levels we keep a sketch for,
+     * taking the largest aligned interval that fits at every step.
+     * @param from the first value of the range
+     * @param to the last value of the range
+     * @return the intervals from left to right, as their start and level
+     */
+    private List<int[]> alignedBlocks(int from, int to) {
+        final var maxLevel = sketches.length - 1;
+        final List<int[]> blocks = new ArrayList<>();
+        // longs, so the end of the range can be Integer.MAX_VALUE
+        for (long offset = from - 1L; offset < to; ) {
+            int y = offset == 0 ? maxLevel : Math.min(maxLevel, Long.numberOfTrailingZeros(offset));
+            while (offset + (1L << y) > to) {
+                y--;
+            }
+            blocks.add(new int[]{(int) (offset + 1), y});
+            offset += 1L << y;
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the estimated count of the dyadic interval [start, start + 2^y - 1].
+     * @param start the start of the interval
+     * @param y the level of the interval, at most the highest level we keep a sketch for
+     * @return the estimated count
+     */
+    private long blockCount(int start, int y) {
+        return getRangeCount(new int[]{start, start + (1 << y) - 1}, y);
+    }
+
     public void addRange(int[] currentRange, int level) {
         final var hashedRange = Arrays.hashCode(currentRange);
         sketches[level].add(hashedRange);
@@ -52,5 +157,46 @@ public class CMRangeSketch {
         return sketches[level].count(hashedRange);
     }
 
+    /**
+     * Serializes the domain and the sketch of every dyadic level.
+     * @return the serialized sketch
+     */
+    public byte[] serialize() {
+        int size = 3 * Integer.BYTES;
+        for (CountMinSketch sketch : sketches) {
+            size += sketch.serializedPayloadSize();
+        }
+        final var buffer = SketchSerialization.allocate(SketchType.CM_RANGE_SKETCH, size);
+        buffer.putInt(domain[0]);
+        buffer.putInt(domain[1]);
+        buffer.putInt(sketches.length);
+        for (CountMinSketch sketch : sketches) {
+            sketch.writeTo(buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Restores a range sketch that was serialized with {@link #serialize()}.
+     * @param bytes the serialized sketch
+     * @return the restored sketch
+     */
+    public static CMRangeSketch deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.CM_RANGE_SKETCH);
+        final var domain = new int[]{
+                SketchSerialization.readInt(buffer, Integer.MIN_VALUE, Integer.MAX_VALUE, "domain lower bound"),
+                SketchSerialization.readInt(buffer, Integer.MIN_VALUE, Integer.MAX_VALUE, "domain upper bound")};
+        final var levels = DyadicIntervalCalculator.getPowerOfTwoFromInterval(domain);
+        SketchSerialization.readInt(buffer, levels, levels, "number of levels");
+        final var sketches = new CountMinSketch[levels];
+        // the maximum decoded size holds for all levels together
+        long decodedBytes = 0;
+        for (int i = 0; i < levels; i++) {
+            sketches[i] = CountMinSketch.readFrom(buffer, decodedBytes);
+            decodedBytes += sketches[i].decodedSize();
+        }
+        SketchSerialization.checkFullyRead(buffer);
+        return new CMRangeSketch(sketches, domain);
+    }
 
 }
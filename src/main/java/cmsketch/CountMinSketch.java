@@ -1,18 +1,30 @@
 package cmsketch;
 
+import metrics.Instrumented;
+import utils.BatchHasher;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-public class CountMinSketch {
+public class CountMinSketch implements Instrumented {
 
     private final HashFunction[] hashFunctions;
 
+    private final BatchHasher batchHasher;
+
     private final int[][] sketch;
 
     private final int m;
 
+    // the sum of all weights added, which always equals the sum of the first row
+    private long totalCount = 0;
+
     /**
      * Creates a Count-Min Sketch with the given error and confidence.
      * error: the probability that the count of a value is less than the actual count
@@ -21,9 +33,10 @@ public class CountMinSketch {
      * @param delta the confidence
      */
     public CountMinSketch(double epsilon, double delta){
-        int m = (int) Math.ceil(Math.E / epsilon);
-        int k = (int) Math.ceil(Math.log(1 / delta));
+        int m = width(epsilon);
+        int k = depth(delta);
         this.hashFunctions = HashUtils.getHashFunctions(k);
+        this.batchHasher = new BatchHasher(hashFunctions);
         this.sketch = new int[k][m];
         this.m = m;
         for (int i = 0; i < k; i++) {
@@ -31,6 +44,34 @@ public class CountMinSketch {
         }
     }
 
+    private static int width(double epsilon){
+        return (int) Math.ceil(Math.E / epsilon);
+    }
+
+    private static int depth(double delta){
+        return (int) Math.ceil(Math.log(1 / delta));
+    }
+
+    /**
+     * Returns the memory the counters of a sketch with the given error and confidence take, without creating it.
+     * @param epsilon the error
+     * @param delta the confidence
+     * @return the size in bytes
+     */
+    public static long sizeInBytes(double epsilon, double delta){
+        return decodedSize(width(epsilon), depth(delta));
+    }
+
+    private CountMinSketch(HashFunction[] hashFunctions, int[][] sketch, int m){
+        this.hashFunctions = hashFunctions;
+        this.batchHasher = new BatchHasher(hashFunctions);
+        this.sketch = sketch;
+        this.m = m;
+        for (int count : sketch[0]) {
+            totalCount += count;
+        }
+    }
+
     /**
      * Adds a value to the sketch.
      * For each hash function, the corresponding cell is incremented by 1.
@@ -40,6 +81,148 @@ public class CountMinSketch {
         for (int i = 0; i < hashFunctions.length; i++) {
             sketch[i][(int) hashFunctions[i].hash(value, m)] += 1;
         }
+        totalCount++;
+    }
+
+    /**
+     * Adds a value with a weight, e.g. a key with the number of bytes it stands for.
+     * This costs the same as adding it once, and gives the same counts as adding it weight times.
+     * The counters are ints, so the weights of a cell must add up to at most Integer.MAX_VALUE.
+     * @param value the value to add to the sketch
+     * @param weight the weight of the value, between 0 and Integer.MAX_VALUE
+     * @throws ArithmeticException if a counter would overflow, in which case the sketch is not changed
+     */
+    public void add(int value, long weight){
+        final var w = checkWeight(weight);
+        for (int i = 0; i < hashFunctions.length; i++) {
+            final var index = (int) hashFunctions[i].hash(value, m);
+            if (sketch[i][index] > Integer.MAX_VALUE - w) {
+                // undo the rows we already added to
+                for (int j = 0; j < i; j++) {
+                    sketch[j][(int) hashFunctions[j].hash(value, m)] -= w;
+                }
+                throw overflow();
+            }
+            sketch[i][index] += w;
+        }
+        totalCount += w;
+    }
+
+    /**
+     * Adds a value to the sketch and returns its new estimated count.
+     * This hashes the value only once per row, instead of once for the add and once for the count.
+     * @param value the value to add to the sketch
+     * @return the estimated count of the value after adding it
+     */
+    public int addAndCount(int value){
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < hashFunctions.length; i++) {
+            int count = ++sketch[i][(int) hashFunctions[i].hash(value, m)];
+            if (count < min) {
+                min = count;
+            }
+        }
+        totalCount++;
+        return min;
+    }
+
+    /**
+     * Adds a batch of values to the sketch.
+     * The values are hashed in blocks, one row at a time, with the {@link BatchHasher},
+     * so a row of the sketch only has to be brought into cache once per block.
+     * @param values the values to add to the sketch
+     */
+    public void addAll(int[] values){
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < hashFunctions.length; row++) {
+                final var cells = sketch[row];
+                for (int i = from; i < to; i++) {
+                    cells[batchHasher.hash(row, values[i], m)]++;
+                }
+            }
+        }
+        totalCount += values.length;
+    }
+
+    /**
+     * Adds a batch of values with weights, in blocks like {@link #addAll(int[])}.
+     * As for {@link #add(int, long)}, the weights of a cell must add up to at most Integer.MAX_VALUE.
+     * @param values the values to add to the sketch
+     * @param weights the weight of every value, between 0 and Integer.MAX_VALUE
+     * @throws ArithmeticException if a counter would overflow, in which case the sketch is not changed
+     */
+    public void addAll(int[] values, long[] weights){
+        if (values.length != weights.length) {
+            throw new IllegalArgumentException("Every value needs exactly one weight.");
+        }
+        long total = 0;
+        for (long weight : weights) {
+            total += checkWeight(weight);
+        }
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < hashFunctions.length; row++) {
+                final var cells = sketch[row];
+                for (int i = from; i < to; i++) {
+                    final var index = batchHasher.hash(row, values[i], m);
+                    final var w = (int) weights[i];
+                    if (cells[index] > Integer.MAX_VALUE - w) {
+                        undoAll(values, weights, from, to, row, i);
+                        throw overflow();
+                    }
+                    cells[index] += w;
+                }
+            }
+        }
+        totalCount += total;
+    }
+
+    /**
+     * Subtracts what a weighted batch added before it hit a counter that would overflow.
+     * All earlier blocks were added to every row, the current block to the rows before the failing one,
+     * and the failing row up to the failing value.
+     */
+    private void undoAll(int[] values, long[] weights, int from, int to, int failedRow, int failedValue){
+        for (int row = 0; row < hashFunctions.length; row++) {
+            final var end = row < failedRow ? to : row == failedRow ? failedValue : from;
+            final var cells = sketch[row];
+            for (int i = 0; i < end; i++) {
+                cells[batchHasher.hash(row, values[i], m)] -= (int) weights[i];
+            }
+        }
+    }
+
+    private static ArithmeticException overflow(){
+        return new ArithmeticException("A counter would overflow, the weights of a cell must add up to at most "
+                + Integer.MAX_VALUE + ".");
+    }
+
+    private static int checkWeight(long weight){
+        if (weight < 0 || weight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid weight: " + weight);
+        }
+        return (int) weight;
+    }
+
+    /**
+     * Returns the counts of a batch of values.
+     * @param values the values to count
+     * @return for every value, its estimated count
+     */
+    public int[] countAll(int[] values){
+        final var counts = new int[values.length];
+        Arrays.fill(counts, Integer.MAX_VALUE);
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < hashFunctions.length; row++) {
+                final var cells = sketch[row];
+                for (int i = from; i < to; i++) {
+                    counts[i] = Math.min(counts[i], cells[batchHasher.hash(row, values[i], m)]);
+                }
+            }
+        }
+        return counts;
     }
 
     /**
@@ -58,6 +241,31 @@ public class CountMinSketch {
         return min;
     }
 
+    /**
+     * Returns the Count-Mean-Min estimate of the count of a value (Deng and Rafiei, 2007).
+     * Every cell holds the count of the value plus the counts of the values that collide with it. When the other values
+     * are spread evenly, every other cell of the row gets the same share of them, so we can estimate that noise
+     * as (N - cell) / (m - 1) and subtract it. The result is the median of these estimates over the rows.
+     * On near uniform data this is much more accurate than the minimum, which is always an overestimate.
+     * It can underestimate though, so it is never larger than the minimum and never negative.
+     * @param value the value to count
+     * @return the estimated count of the value
+     */
+    public int countMeanMin(int value){
+        final var estimates = new double[hashFunctions.length];
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < hashFunctions.length; i++) {
+            final var count = sketch[i][(int) hashFunctions[i].hash(value, m)];
+            min = Math.min(min, count);
+            final var noise = m == 1 ? 0 : (totalCount - count) / (double) (m - 1);
+            estimates[i] = count - noise;
+        }
+        Arrays.sort(estimates);
+        final var middle = estimates.length / 2;
+        final var median = estimates.length % 2 == 1 ? estimates[middle] : (estimates[middle - 1] + estimates[middle]) / 2;
+        return (int) Math.max(0, Math.min(min, Math.round(median)));
+    }
+
     /**
      * Removes a value from the sketch.
      * @param value the value to remove from the sketch
@@ -67,8 +275,179 @@ public class CountMinSketch {
             final var count = sketch[i][(int) hashFunctions[i].hash(value, m)];
             if (count > 0) {
                 sketch[i][(int) hashFunctions[i].hash(value, m)] -= 1;
+                if (i == 0) {
+                    totalCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges another sketch into this one by adding up the cells, e.g. the sketch of another worker.
+     * The result is the same as if all values of the other sketch had been added to this one.
+     * @param other the sketch to merge, which must have the same width and hash functions
+     */
+    public void merge(CountMinSketch other){
+        checkSameShape(other);
+        for (int i = 0; i < sketch.length; i++) {
+            final var row = sketch[i];
+            final var otherRow = other.sketch[i];
+            for (int j = 0; j < m; j++) {
+                row[j] += otherRow[j];
             }
         }
+        totalCount += other.totalCount;
+    }
+
+    /**
+     * Estimates the inner product of the frequency vectors of two streams, i.e. the sum over all values of
+     * count in this stream * count in the other stream, which is the size of the equi-join of the two streams.
+     * The dot product of a pair of rows counts every pair of values that collide in that row, so it only overestimates,
+     * by at most epsilon * N1 * N2 with probability 1 - delta. As for point queries, we take the minimum over the rows.
+     * The rows are plain int arrays, so every dot product is a single pass over memory that the JIT can unroll.
+     * @param other the sketch of the other stream, which must have the same width and hash functions
+     * @return the estimated inner product
+     */
+    public long innerProduct(CountMinSketch other){
+        checkSameShape(other);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < sketch.length; i++) {
+            min = Math.min(min, dotProduct(sketch[i], other.sketch[i]));
+        }
+        return min;
     }
 
+    /**
+     * Estimates the second frequency moment F2, the sum of the squared counts, which is the size of the self-join.
+     * @return the estimated F2 of the stream
+     */
+    public long selfJoinSize(){
+        return innerProduct(this);
+    }
+
+    private static long dotProduct(int[] a, int[] b){
+        long sum = 0;
+        for (int j = 0; j < a.length; j++) {
+            sum += (long) a[j] * b[j];
+        }
+        return sum;
+    }
+
+    private void checkSameShape(CountMinSketch other){
+        if (other.m != m || !HashUtils.sameHashFunctions(hashFunctions, other.hashFunctions)) {
+            throw new IllegalArgumentException("Can only combine count-min sketches with the same width and hash functions.");
+        }
+    }
+
+    /**
+     * Resets all counters to zero, which costs O(width) per row.
+     */
+    public void clear(){
+        for (int[] row : sketch) {
+            Arrays.fill(row, 0);
+        }
+        totalCount = 0;
+    }
+
+    /**
+     * Returns the memory the counters of a sketch take.
+     * @param m the width of the sketch
+     * @param depth the depth of the sketch
+     * @return the size in bytes
+     */
+    static long decodedSize(int m, int depth){
+        return (long) Integer.BYTES * m * depth;
+    }
+
+    long decodedSize(){
+        return decodedSize(m, hashFunctions.length);
+    }
+
+    int depth(){
+        return hashFunctions.length;
+    }
+
+    int index(int row, int value){
+        return (int) hashFunctions[row].hash(value, m);
+    }
+
+    int cell(int row, int index){
+        return sketch[row][index];
+    }
+
+    /**
+     * Serializes the sketch into the compact binary format of {@link SketchSerialization}.
+     * @return the serialized sketch
+     */
+    public byte[] serialize(){
+        final var buffer = SketchSerialization.allocate(SketchType.COUNT_MIN_SKETCH, serializedPayloadSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a sketch that was serialized with {@link #serialize()}.
+     * @param bytes the serialized sketch
+     * @return the restored sketch
+     */
+    public static CountMinSketch deserialize(byte[] bytes){
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.COUNT_MIN_SKETCH);
+        final var sketch = readFrom(buffer, 0);
+        SketchSerialization.checkFullyRead(buffer);
+        return sketch;
+    }
+
+    int serializedPayloadSize(){
+        int size = Integer.BYTES + SketchSerialization.hashFunctionsSize(hashFunctions);
+        for (int[] row : sketch) {
+            size += SketchSerialization.countersSize(row);
+        }
+        return size;
+    }
+
+    void writeTo(ByteBuffer buffer){
+        buffer.putInt(m);
+        SketchSerialization.writeHashFunctions(buffer, hashFunctions);
+        for (int[] row : sketch) {
+            SketchSerialization.writeCounters(buffer, row);
+        }
+    }
+
+    /**
+     * Reads a sketch that was written with {@link #writeTo}.
+     * @param buffer the buffer to read from
+     * @param decodedBytes the bytes that were decoded before, which count towards the maximum decoded size as well
+     * @return the sketch
+     */
+    static CountMinSketch readFrom(ByteBuffer buffer, long decodedBytes){
+        final var m = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE, "sketch width");
+        final var hashFunctions = SketchSerialization.readHashFunctions(buffer);
+        if (hashFunctions.length == 0) {
+            throw new IllegalArgumentException("A count-min sketch needs at least one hash function.");
+        }
+        SketchSerialization.checkDecodedSize(decodedBytes + decodedSize(m, hashFunctions.length), "count-min sketch");
+        final var sketch = new int[hashFunctions.length][];
+        for (int i = 0; i < hashFunctions.length; i++) {
+            sketch[i] = SketchSerialization.readCounters(buffer, m);
+        }
+        return new CountMinSketch(hashFunctions, sketch, m);
+    }
+
+    /**
+     * Reports the total count N next to the error bound epsilon * N, which every point query may overestimate by
+     * (with probability 1 - delta).
+     * Every arrival increments exactly one cell per row, so N is the sum of the first row, which we keep track of.
+     * @return the metrics of the sketch
+     */
+    @Override
+    public Map<String, Number> metricsSnapshot(){
+        final var epsilon = Math.E / m;
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("width", m);
+        snapshot.put("depth", hashFunctions.length);
+        snapshot.put("totalCount", totalCount);
+        snapshot.put("epsilon", epsilon);
+        snapshot.put("errorBound", epsilon * totalCount);
+        return snapshot;
+    }
 }
@@ -0,0 +1,184 @@
+package cmsketch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of the k most frequent values of a stream on top of a Count-Min Sketch.
+ * Every arrival is added to the sketch, after which its estimated count is compared with the current top-k.
+ * The top-k is a bounded min-heap, so the least frequent of the heavy hitters is always at the root.
+ * Most arrivals are not heavy hitters, and they are rejected with a single comparison against the root.
+ * To find out whether a value is already in the heap we keep an open addressing table from value to heap position.
+ * Both the heap and the table are stored in primitive arrays, so no objects are created during ingestion.
+ */
+public class HeavyHitters {
+
+    private static final int EMPTY = -1;
+
+    private final CountMinSketch sketch;
+
+    private final int k;
+
+    // the min-heap, ordered on count
+    private final int[] heapValues;
+    private final int[] heapCounts;
+    private int size = 0;
+
+    // open addressing table (linear probing) from value to its position in the heap
+    private final int[] tableValues;
+    private final int[] tablePositions;
+    private final int tableMask;
+
+    /**
+     * Creates a new heavy hitters tracker.
+     * @param epsilon the error of the underlying Count-Min Sketch
+     * @param delta the confidence of the underlying Count-Min Sketch
+     * @param k the number of heavy hitters to keep track of
+     */
+    public HeavyHitters(double epsilon, double delta, int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive.");
+        }
+        this.sketch = new CountMinSketch(epsilon, delta);
+        this.k = k;
+        this.heapValues = new int[k];
+        this.heapCounts = new int[k];
+        // keep the load factor of the table at most 0.5
+        final var tableSize = Integer.highestOneBit(k) << 2;
+        this.tableValues = new int[tableSize];
+        this.tablePositions = new int[tableSize];
+        this.tableMask = tableSize - 1;
+        Arrays.fill(tablePositions, EMPTY);
+    }
+
+    /**
+     * Adds a value to the sketch and updates the top-k.
+     * @param value the value to add
+     */
+    public void add(int value) {
+        final var count = sketch.addAndCount(value);
+        final var slot = findSlot(value);
+        if (tablePositions[slot] != EMPTY) {
+            // already a heavy hitter, its count only grew so it can only move down in the heap
+            final var position = tablePositions[slot];
+            heapCounts[position] = count;
+            siftDown(position);
+        } else if (size < k) {
+            tableValues[slot] = value;
+            heapValues[size] = value;
+            heapCounts[size] = count;
+            tablePositions[slot] = size;
+            siftUp(size++);
+        } else if (count > heapCounts[0]) {
+            // evict the least frequent heavy hitter and put the new value at the root
+            removeFromTable(heapValues[0]);
+            final var newSlot = findSlot(value);
+            tableValues[newSlot] = value;
+            tablePositions[newSlot] = 0;
+            heapValues[0] = value;
+            heapCounts[0] = count;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Returns the estimated count of any value, heavy hitter or not.
+     * @param value the value to count
+     * @return the estimated count
+     */
+    public int count(int value) {
+        return sketch.count(value);
+    }
+
+    /**
+     * Returns a snapshot of the current top-k, most frequent first.
+     * @return a list of {value, estimated count} pairs
+     */
+    public List<int[]> topK() {
+        List<int[]> topK = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            topK.add(new int[]{heapValues[i], heapCounts[i]});
+        }
+        topK.sort((a, b) -> Integer.compare(b[1], a[1]));
+        return topK;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            final var parent = (position - 1) >>> 1;
+            if (heapCounts[parent] <= heapCounts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            final var left = 2 * position + 1;
+            if (left >= size) {
+                return;
+            }
+            final var right = left + 1;
+            final var smallest = right < size && heapCounts[right] < heapCounts[left] ? right : left;
+            if (heapCounts[position] <= heapCounts[smallest]) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final var value = heapValues[i];
+        final var count = heapCounts[i];
+        heapValues[i] = heapValues[j];
+        heapCounts[i] = heapCounts[j];
+        heapValues[j] = value;
+        heapCounts[j] = count;
+        tablePositions[findSlot(heapValues[i])] = i;
+        tablePositions[findSlot(heapValues[j])] = j;
+    }
+
+    /**
+     * Finds the slot of a value in the table, or the empty slot where it should be inserted.
+     * @param value the value to look up
+     * @return the slot index
+     */
+    private int findSlot(int value) {
+        var slot = mix(value) & tableMask;
+        while (tablePositions[slot] != EMPTY && tableValues[slot] != value) {
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a value from the table.
+     * With linear probing we can't just empty the slot, so the entries after it are shifted back where needed.
+     * @param value the value to remove
+     */
+    private void removeFromTable(int value) {
+        var slot = findSlot(value);
+        tablePositions[slot] = EMPTY;
+        var next = (slot + 1) & tableMask;
+        while (tablePositions[next] != EMPTY) {
+            final var home = mix(tableValues[next]) & tableMask;
+            // move the entry back if its home slot is not in the (cyclic) range (slot, next]
+            if (((next - home) & tableMask) >= ((next - slot) & tableMask)) {
+                tableValues[slot] = tableValues[next];
+                tablePositions[slot] = tablePositions[next];
+                tablePositions[next] = EMPTY;
+                slot = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+    }
+
+    private static int mix(int value) {
+        final var hash = value * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
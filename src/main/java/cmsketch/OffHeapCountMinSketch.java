@@ -0,0 +1,313 @@
+package cmsketch;
+
+import utils.BatchHasher;
+import utils.HashFunction;
+import utils.HashUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Count-Min Sketch that keeps its counters outside of the Java heap.
+ * Very wide sketches (e.g. epsilon = 1e-7 gives 27 million counters per row) would otherwise take hundreds of MB of heap
+ * and make every full GC scan and copy them.
+ * Every row is a direct ByteBuffer, or a region of a memory mapped file, so the sketch can also be persisted and reopened.
+ * Counters are either 32 bit (like the on-heap CountMinSketch) or 64 bit, for streams that can overflow an int.
+ * The memory is released explicitly with {@link #close()}, instead of waiting for the GC to collect the buffers.
+ * It hashes exactly like the on-heap CountMinSketch, so both give the same counts for the same stream.
+ */
+public class OffHeapCountMinSketch implements AutoCloseable {
+
+    private static final int FILE_MAGIC = 0x4F48434D; // "OHCM"
+    private static final int FILE_VERSION = 1;
+
+    // the header is padded, so the rows after it stay aligned
+    private static final int HEADER_BYTES = 64;
+
+    private final HashFunction[] hashFunctions;
+
+    private final BatchHasher batchHasher;
+
+    private final ByteBuffer[] rows;
+
+    private final int m;
+
+    // 4 or 8
+    private final int counterBytes;
+
+    private final FileChannel channel;
+
+    private boolean closed = false;
+
+    /**
+     * Creates an off-heap Count-Min Sketch in direct memory.
+     * @param epsilon the error
+     * @param delta the confidence
+     * @param longCounters true for 64 bit counters, false for 32 bit counters
+     */
+    public OffHeapCountMinSketch(double epsilon, double delta, boolean longCounters) {
+        this(epsilon, delta, longCounters, null);
+    }
+
+    private OffHeapCountMinSketch(double epsilon, double delta, boolean longCounters, Path file) {
+        this.m = (int) Math.ceil(Math.E / epsilon);
+        final var k = (int) Math.ceil(Math.log(1 / delta));
+        this.hashFunctions = HashUtils.getHashFunctions(k);
+        this.batchHasher = new BatchHasher(hashFunctions);
+        this.counterBytes = longCounters ? Long.BYTES : Integer.BYTES;
+        this.rows = new ByteBuffer[k];
+        this.channel = file == null ? null : openFile(file);
+        for (int i = 0; i < k; i++) {
+            // direct buffers are zeroed on allocation, and so is the part of a file that a mapping grows
+            rows[i] = channel == null
+                    ? ByteBuffer.allocateDirect(rowBytes()).order(ByteOrder.nativeOrder())
+                    : mapRow(i);
+        }
+    }
+
+    /**
+     * Creates an off-heap Count-Min Sketch backed by a memory mapped file.
+     * If the file already holds a sketch with the same parameters, its counts are kept, so a sketch survives restarts.
+     * The file starts with a header of {@value #HEADER_BYTES} bytes (a magic number, the version, the width, the depth,
+     * the counter size and a fingerprint of the hash functions), followed by the rows one after the other,
+     * all little endian. Opening a file whose header does not match the parameters fails.
+     * @param epsilon the error
+     * @param delta the confidence
+     * @param longCounters true for 64 bit counters, false for 32 bit counters
+     * @param file the file to map
+     * @return the sketch
+     */
+    public static OffHeapCountMinSketch mapFile(double epsilon, double delta, boolean longCounters, Path file) {
+        return new OffHeapCountMinSketch(epsilon, delta, longCounters, file);
+    }
+
+    /**
+     * Opens a sketch file, writing the header if the file is new and checking it otherwise.
+     * @param file the file to open
+     * @return the channel of the file
+     */
+    private FileChannel openFile(Path file) {
+        final var expectedSize = HEADER_BYTES + (long) rows.length * rowBytes();
+        try {
+            final var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final var header = header();
+                final var size = channel.size();
+                if (size == 0) {
+                    while (header.hasRemaining()) {
+                        channel.write(header, header.position());
+                    }
+                    channel.force(true);
+                    return channel;
+                }
+                final var existing = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                while (existing.hasRemaining()) {
+                    if (channel.read(existing, existing.position()) < 0) {
+                        break;
+                    }
+                }
+                checkHeader(file, existing.flip());
+                if (size != expectedSize) {
+                    throw new IllegalArgumentException("File " + file + " has " + size + " bytes, but the sketch needs " + expectedSize + ".");
+                }
+                return channel;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open " + file, e);
+        }
+    }
+
+    private ByteBuffer header() {
+        final var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FILE_MAGIC);
+        header.putInt(FILE_VERSION);
+        header.putInt(m);
+        header.putInt(rows.length);
+        header.putInt(counterBytes);
+        header.putLong(hashFingerprint());
+        return header.clear();
+    }
+
+    private void checkHeader(Path file, ByteBuffer header) {
+        if (header.remaining() < HEADER_BYTES || header.getInt() != FILE_MAGIC) {
+            throw new IllegalArgumentException("File " + file + " does not hold an off-heap count-min sketch.");
+        }
+        final var version = header.getInt();
+        if (version != FILE_VERSION) {
+            throw new IllegalArgumentException("File " + file + " has unsupported version " + version + ".");
+        }
+        final var fileM = header.getInt();
+        final var fileK = header.getInt();
+        final var fileCounterBytes = header.getInt();
+        if (fileM != m || fileK != rows.length || fileCounterBytes != counterBytes) {
+            throw new IllegalArgumentException("File " + file + " holds a sketch of width " + fileM + ", depth " + fileK + " and "
+                    + fileCounterBytes + " byte counters, not of width " + m + ", depth " + rows.length + " and " + counterBytes + " byte counters.");
+        }
+        if (header.getLong() != hashFingerprint()) {
+            throw new IllegalArgumentException("File " + file + " holds a sketch with different hash functions.");
+        }
+    }
+
+    /**
+     * Combines the parameters of all hash functions, so a file is not reused if the hash functions change.
+     * @return the fingerprint
+     */
+    private long hashFingerprint() {
+        long fingerprint = 17;
+        for (HashFunction hashFunction : hashFunctions) {
+            fingerprint = 31 * (31 * (31 * fingerprint + hashFunction.getX()) + hashFunction.getY()) + hashFunction.getZ();
+        }
+        return fingerprint;
+    }
+
+    private ByteBuffer mapRow(int row) {
+        try {
+            final var position = HEADER_BYTES + (long) row * rowBytes();
+            return channel.map(FileChannel.MapMode.READ_WRITE, position, rowBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map row " + row, e);
+        }
+    }
+
+    private int rowBytes() {
+        final var bytes = (long) m * counterBytes;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A row of " + bytes + " bytes does not fit in a single buffer.");
+        }
+        return (int) bytes;
+    }
+
+    /**
+     * Adds a value to the sketch.
+     * @param value the value to add to the sketch
+     */
+    public void add(int value) {
+        checkOpen();
+        for (int i = 0; i < rows.length; i++) {
+            increment(rows[i], (int) hashFunctions[i].hash(value, m));
+        }
+    }
+
+    /**
+     * Adds a batch of values to the sketch, row by row with the {@link BatchHasher}.
+     * @param values the values to add to the sketch
+     */
+    public void addAll(int[] values) {
+        checkOpen();
+        for (int from = 0; from < values.length; from += BatchHasher.BLOCK_SIZE) {
+            final var to = Math.min(from + BatchHasher.BLOCK_SIZE, values.length);
+            for (int row = 0; row < rows.length; row++) {
+                final var cells = rows[row];
+                for (int i = from; i < to; i++) {
+                    increment(cells, batchHasher.hash(row, values[i], m));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the count of a value by taking the minimum of the corresponding cells.
+     * @param value the value to count
+     * @return the count of the value
+     */
+    public long count(int value) {
+        checkOpen();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < rows.length; i++) {
+            min = Math.min(min, get(rows[i], (int) hashFunctions[i].hash(value, m)));
+        }
+        return min;
+    }
+
+    private void increment(ByteBuffer row, int index) {
+        if (counterBytes == Long.BYTES) {
+            final var offset = index * Long.BYTES;
+            row.putLong(offset, row.getLong(offset) + 1);
+        } else {
+            final var offset = index * Integer.BYTES;
+            row.putInt(offset, row.getInt(offset) + 1);
+        }
+    }
+
+    private long get(ByteBuffer row, int index) {
+        return counterBytes == Long.BYTES ? row.getLong(index * Long.BYTES) : row.getInt(index * Integer.BYTES);
+    }
+
+    /**
+     * Returns the number of bytes the counters take outside of the heap.
+     * @return the size in bytes
+     */
+    public long offHeapBytes() {
+        return (long) rows.length * rowBytes();
+    }
+
+    /**
+     * Flushes the counters to the file, if the sketch is backed by one.
+     */
+    public void flush() {
+        checkOpen();
+        if (channel == null) {
+            return;
+        }
+        for (ByteBuffer row : rows) {
+            ((MappedByteBuffer) row).force();
+        }
+    }
+
+    /**
+     * Releases the memory of the sketch (and unmaps the file), after which it can no longer be used.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < rows.length; i++) {
+            invokeCleaner(rows[i]);
+            rows[i] = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The sketch is closed.");
+        }
+    }
+
+    /**
+     * Frees a direct or mapped buffer right away.
+     * Java 11 has no public API for this, so we use Unsafe.invokeCleaner of the jdk.unsupported module.
+     * If that is not available, the memory is freed when the buffer is garbage collected.
+     * @param buffer the buffer to free
+     */
+    private static void invokeCleaner(ByteBuffer buffer) {
+        try {
+            final var unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // fall back to the garbage collector
+        }
+    }
+}
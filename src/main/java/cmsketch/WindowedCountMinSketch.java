@@ -0,0 +1,138 @@
+package cmsketch;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A Count-Min Sketch that only counts the recent past, e.g. "the frequency over the last hour".
+ * Time is divided into epochs of a fixed length and every epoch gets its own sketch slice, kept in a ring.
+ * When a new epoch starts, the oldest slice is cleared and reused, so old arrivals expire in O(width) per row
+ * without having to replay and remove them.
+ * A query sums the cells of all active slices per row and then takes the minimum over the rows, like a normal Count-Min Sketch.
+ * All slices use the same hash functions, so a value is hashed only once per row, no matter how many slices there are.
+ *
+ * Optionally, the slices can be weighted with an exponential decay: a slice that is a epochs old is multiplied with decay^a.
+ * This gives a smoothly decaying frequency in a fixed amount of memory.
+ */
+public class WindowedCountMinSketch {
+
+    private final CountMinSketch[] slices;
+
+    private final long epochLength;
+
+    private final double decay;
+
+    private final LongSupplier clock;
+
+    // the epoch the current slice belongs to
+    private long currentEpoch;
+
+    private int currentSlice = 0;
+
+    /**
+     * Creates a windowed Count-Min Sketch that counts the last numberOfSlices epochs, using the system clock.
+     * @param epsilon the error of every slice
+     * @param delta the confidence of every slice
+     * @param numberOfSlices the number of epochs in the window
+     * @param epochLengthMillis the length of an epoch in milliseconds
+     */
+    public WindowedCountMinSketch(double epsilon, double delta, int numberOfSlices, long epochLengthMillis) {
+        this(epsilon, delta, numberOfSlices, epochLengthMillis, 1.0, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a windowed Count-Min Sketch.
+     * @param epsilon the error of every slice
+     * @param delta the confidence of every slice
+     * @param numberOfSlices the number of epochs in the window
+     * @param epochLength the length of an epoch, in the unit of the clock
+     * @param decay the weight factor per epoch of age for decayedCount (1 means no decay)
+     * @param clock the clock to read the current time from
+     */
+    public WindowedCountMinSketch(double epsilon, double delta, int numberOfSlices, long epochLength, double decay, LongSupplier clock) {
+        if (numberOfSlices <= 0 || epochLength <= 0) {
+            throw new IllegalArgumentException("The number of slices and the epoch length must be positive.");
+        }
+        if (decay <= 0 || decay > 1) {
+            throw new IllegalArgumentException("The decay must be in (0, 1].");
+        }
+        this.slices = new CountMinSketch[numberOfSlices];
+        for (int i = 0; i < numberOfSlices; i++) {
+            slices[i] = new CountMinSketch(epsilon, delta);
+        }
+        this.epochLength = epochLength;
+        this.decay = decay;
+        this.clock = clock;
+        this.currentEpoch = Math.floorDiv(clock.getAsLong(), epochLength);
+    }
+
+    /**
+     * Adds a value to the slice of the current epoch.
+     * @param value the value to add
+     */
+    public void add(int value) {
+        rotate();
+        slices[currentSlice].add(value);
+    }
+
+    /**
+     * Returns the estimated count of a value over all epochs in the window.
+     * @param value the value to count
+     * @return the estimated count
+     */
+    public long count(int value) {
+        rotate();
+        final var first = slices[0];
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < first.depth(); row++) {
+            final var index = first.index(row, value);
+            long sum = 0;
+            for (CountMinSketch slice : slices) {
+                sum += slice.cell(row, index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the estimated count of a value where every epoch is weighted with decay^age.
+     * The current epoch has age 0 and therefore weight 1.
+     * @param value the value to count
+     * @return the estimated decayed count
+     */
+    public double decayedCount(int value) {
+        rotate();
+        final var first = slices[0];
+        double min = Double.MAX_VALUE;
+        for (int row = 0; row < first.depth(); row++) {
+            final var index = first.index(row, value);
+            double sum = 0;
+            double weight = 1;
+            // walk from the current slice back to the oldest one
+            for (int age = 0; age < slices.length; age++) {
+                final var slice = slices[Math.floorMod(currentSlice - age, slices.length)];
+                sum += weight * slice.cell(row, index);
+                weight *= decay;
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * Moves the ring forward to the current epoch.
+     * Every epoch that has passed clears one slice, and if more epochs passed than there are slices, all slices are cleared once.
+     */
+    private void rotate() {
+        final var epoch = Math.floorDiv(clock.getAsLong(), epochLength);
+        if (epoch <= currentEpoch) {
+            return;
+        }
+        final var passed = (int) Math.min(epoch - currentEpoch, slices.length);
+        for (int i = 0; i < passed; i++) {
+            currentSlice = (currentSlice + 1) % slices.length;
+            slices[currentSlice].clear();
+        }
+        currentEpoch = epoch;
+    }
+}
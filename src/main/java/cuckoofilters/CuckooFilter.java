@@ -1,9 +1,17 @@
 package cuckoofilters;
 
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Instrumented;
+import metrics.Metrics;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A cuckoo filter is a probabilistic data structure that can be used to test whether an element is a member of a set.
@@ -16,7 +24,7 @@ import java.util.Arrays;
  * This is why we need to use the modulo operator to get a value that fits in the filter.
  * This works well and the FPR is lower than the specified value, which is positive.
  */
-public class CuckooFilter {
+public class CuckooFilter implements Instrumented {
 
     private final int MAX_RETRIES = 500;
 
@@ -27,6 +35,10 @@ public class CuckooFilter {
 
     private final HashFunction primaryHashFunction;
 
+    // only recorded when metrics are enabled
+    private final Histogram kickChainLengths = new Histogram();
+    private final Counter insertFailures = new Counter();
+
 
     /**
      * Creates a new Cuckoo filter
@@ -54,6 +66,12 @@ public class CuckooFilter {
         }
     }
 
+    private CuckooFilter(int[][] cuckooFilter, int signatureSize, HashFunction primaryHashFunction) {
+        this.cuckooFilter = cuckooFilter;
+        this.signatureSize = signatureSize;
+        this.primaryHashFunction = primaryHashFunction;
+    }
+
     /**
      * Inserts a new value into the cuckoo filter
      *
@@ -63,17 +81,20 @@ public class CuckooFilter {
      */
     public boolean insert(int item, int retries) {
         if (retries >= MAX_RETRIES) {
+            if (Metrics.ENABLED) {
+                insertFailures.increment();
+            }
             return false;
         }
         final var signature = getSignature(item);
         final var primaryHashedValue = (int) primaryHashFunction.hash(item, cuckooFilter.length);
         //first try inserting normally
         if (insertIntoBucket(signature, primaryHashedValue)) {
-            return true;
+            return inserted(retries);
         }
         final var secondaryHashedValue = secondHashFunction(signature, primaryHashedValue);
         if (insertIntoBucket(signature, secondaryHashedValue)) {
-            return true;
+            return inserted(retries);
         }
         //if both are full, evict a random element from one of the buckets and reinsert
         final var randomBucket = Math.random() < 0.5 ? primaryHashedValue : secondaryHashedValue;
@@ -94,11 +115,11 @@ public class CuckooFilter {
         final var primaryHashedValue = (int) primaryHashFunction.hash(item, cuckooFilter.length);
         //first try inserting normally
         if (insertIntoBucket(signature, primaryHashedValue)) {
-            return true;
+            return inserted(0);
         }
         final var secondaryHashedValue = secondHashFunction(signature, primaryHashedValue);
         if (insertIntoBucket(signature, secondaryHashedValue)) {
-            return true;
+            return inserted(0);
         }
         //if both are full, evict a random element from one of the buckets and reinsert
         final var randomBucket = Math.random() < 0.5 ? primaryHashedValue : secondaryHashedValue;
@@ -108,6 +129,19 @@ public class CuckooFilter {
         return insert(evictedSignature, 1);
     }
 
+    /**
+     * Records the length of the kick chain of a successful insert, if metrics are enabled.
+     *
+     * @param kicks the number of evictions that were needed
+     * @return true, so it can be returned directly
+     */
+    private boolean inserted(int kicks) {
+        if (Metrics.ENABLED) {
+            kickChainLengths.record(kicks);
+        }
+        return true;
+    }
+
     /**
      * Actually inserts the signature into the bucket
      *
@@ -215,4 +249,86 @@ public class CuckooFilter {
         final var hashcode = value.hashCode();
         return hashcode & ((1 << signatureSize) - 1);
     }
+
+    /**
+     * Serializes the filter into the compact binary format of {@link SketchSerialization}.
+     * The slots are flattened and shifted by one, so empty slots become zeros and a sparse filter compresses well.
+     * @return the serialized filter
+     */
+    public byte[] serialize() {
+        final var bucketSize = cuckooFilter.length == 0 ? 0 : cuckooFilter[0].length;
+        final var slots = new int[cuckooFilter.length * bucketSize];
+        for (int i = 0; i < cuckooFilter.length; i++) {
+            for (int j = 0; j < bucketSize; j++) {
+                slots[i * bucketSize + j] = cuckooFilter[i][j] + 1;
+            }
+        }
+        final var hashFunctions = new HashFunction[]{primaryHashFunction};
+        final var size = 3 * Integer.BYTES + SketchSerialization.hashFunctionsSize(hashFunctions) + SketchSerialization.countersSize(slots);
+        final var buffer = SketchSerialization.allocate(SketchType.CUCKOO_FILTER, size);
+        buffer.putInt(signatureSize);
+        buffer.putInt(cuckooFilter.length);
+        buffer.putInt(bucketSize);
+        SketchSerialization.writeHashFunctions(buffer, hashFunctions);
+        SketchSerialization.writeCounters(buffer, slots);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a filter that was serialized with {@link #serialize()}.
+     * @param bytes the serialized filter
+     * @return the restored filter
+     */
+    public static CuckooFilter deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.CUCKOO_FILTER);
+        final var signatureSize = SketchSerialization.readInt(buffer, 1, 30, "signature size");
+        final var nrOfBuckets = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE, "number of buckets");
+        final var bucketSize = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE / nrOfBuckets, "bucket size");
+        final var hashFunctions = SketchSerialization.readHashFunctions(buffer);
+        if (hashFunctions.length != 1) {
+            throw new IllegalArgumentException("A cuckoo filter has exactly one primary hash function.");
+        }
+        // the slots are decoded once as a flat array and once as the buckets
+        SketchSerialization.checkDecodedSize(2L * Integer.BYTES * nrOfBuckets * bucketSize, "cuckoo filter");
+        final var slots = SketchSerialization.readCounters(buffer, nrOfBuckets * bucketSize);
+        SketchSerialization.checkFullyRead(buffer);
+        final var cuckooFilter = new int[nrOfBuckets][bucketSize];
+        for (int i = 0; i < nrOfBuckets; i++) {
+            for (int j = 0; j < bucketSize; j++) {
+                final var signature = slots[i * bucketSize + j] - 1;
+                if (signature < -1 || signature >= (1 << signatureSize)) {
+                    throw new IllegalArgumentException("Invalid signature in bucket " + i + ": " + signature);
+                }
+                cuckooFilter[i][j] = signature;
+            }
+        }
+        return new CuckooFilter(cuckooFilter, signatureSize, hashFunctions[0]);
+    }
+
+    /**
+     * Reports the load factor of the filter and the kick chains of the inserts.
+     * Long kick chains and failed inserts mean the filter is close to saturation.
+     * @return the metrics of the filter
+     */
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        int occupiedSlots = 0;
+        int slots = 0;
+        for (int[] bucket : cuckooFilter) {
+            for (int slot : bucket) {
+                if (slot != -1) {
+                    occupiedSlots++;
+                }
+            }
+            slots += bucket.length;
+        }
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("buckets", cuckooFilter.length);
+        snapshot.put("signatureSize", signatureSize);
+        snapshot.put("occupiedSlots", occupiedSlots);
+        snapshot.put("loadFactor", (double) occupiedSlots / slots);
+        snapshot.put("insertFailures", insertFailures.getCount());
+        kickChainLengths.addTo("kickChainLength", snapshot);
+        return snapshot;
+    }
 }
@@ -1,14 +1,20 @@
 package exponentialhistograms;
 
 import lombok.Getter;
+import metrics.Counter;
+import metrics.Instrumented;
+import metrics.Metrics;
+import utils.SketchSerialization;
+import utils.SketchType;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * An implementation of the Exponential Histograms algorithm.
  * Assumes integers as input arrivals from a stream.
  */
-public class ExponentialHistogram {
+public class ExponentialHistogram implements Instrumented {
 
     @Getter
     HashMap<Integer, Queue<Bucket>> buckets = new HashMap<>();
@@ -16,6 +22,13 @@ public class ExponentialHistogram {
     private final int maxBucketsForSize;
     private int totalArrivals = 0;
 
+    // only recorded when metrics are enabled
+    private final Counter merges = new Counter();
+
+    // the number of buckets of size 2^i, kept up to date on the write path for metricsSnapshot,
+    // which may run on another thread (e.g. JMX) and so can't iterate the HashMap. Only recorded when metrics are enabled
+    private final AtomicIntegerArray bucketsPerSize = new AtomicIntegerArray(Integer.SIZE);
+
     /**
      * Creates a new ExponentialHistogram.
      * @param epsilon the error rate
@@ -29,6 +42,12 @@ public class ExponentialHistogram {
         buckets.put(1, new LinkedList<>());
     }
 
+    private ExponentialHistogram(int target, int maxBucketsForSize, int totalArrivals) {
+        this.maxBucketsForSize = maxBucketsForSize;
+        this.target = target;
+        this.totalArrivals = totalArrivals;
+    }
+
     /**
      * Adds an arrival to the histogram.
      * @param arrival the arrival to add
@@ -40,6 +59,7 @@ public class ExponentialHistogram {
             return;
         }
         buckets.get(1).add(new Bucket(1, totalArrivals));
+        addBuckets(1, 1);
         reorderBuckets(1);
     }
 
@@ -55,15 +75,32 @@ public class ExponentialHistogram {
             Bucket secondBucket = buckets.get(i).poll();
             // we just assume neither are null, as minimum number of buckets are 2 per size.
             Bucket combinedBucket = firstBucket.combineBucket(secondBucket);
+            if (Metrics.ENABLED) {
+                merges.increment();
+            }
+            addBuckets(i, -2);
             i *= 2;
             if (!buckets.containsKey(i)) {
                 buckets.put(i, new LinkedList<>());
             }
             buckets.get(i).add(combinedBucket);
+            addBuckets(i, 1);
             reorderBuckets(i);
         }
     }
 
+    /**
+     * Updates the published number of buckets of a size. There is a single writer, so a lazy set is enough,
+     * which is about as cheap as a plain store. Metrics.ENABLED is a constant, so without metrics the JIT drops this.
+     */
+    private void addBuckets(int size, int delta) {
+        if (!Metrics.ENABLED) {
+            return;
+        }
+        final var i = Integer.numberOfTrailingZeros(size);
+        bucketsPerSize.lazySet(i, bucketsPerSize.get(i) + delta);
+    }
+
     /**
      * Returns an estimation of the number of arrivals with the target value in the last givenWindow
      * @param givenWindow the window to look at
@@ -95,5 +132,91 @@ public class ExponentialHistogram {
         return count;
     }
 
+    /**
+     * Serializes the histogram into the compact binary format of {@link SketchSerialization}.
+     * For every bucket size we write the number of buckets followed by the (count, first arrival) pairs, oldest first.
+     * @return the serialized histogram
+     */
+    public byte[] serialize() {
+        List<Integer> keys = new ArrayList<>(buckets.keySet());
+        Collections.sort(keys);
+        int size = 4 * Integer.BYTES;
+        for (Integer key : keys) {
+            size += 2 * Integer.BYTES + buckets.get(key).size() * 2 * Integer.BYTES;
+        }
+        final var buffer = SketchSerialization.allocate(SketchType.EXPONENTIAL_HISTOGRAM, size);
+        buffer.putInt(target);
+        buffer.putInt(maxBucketsForSize);
+        buffer.putInt(totalArrivals);
+        buffer.putInt(keys.size());
+        for (Integer key : keys) {
+            buffer.putInt(key);
+            buffer.putInt(buckets.get(key).size());
+            for (Bucket bucket : buckets.get(key)) {
+                buffer.putInt(bucket.getCount());
+                buffer.putInt(bucket.getFirstArrival());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Restores a histogram that was serialized with {@link #serialize()}.
+     * @param bytes the serialized histogram
+     * @return the restored histogram
+     */
+    public static ExponentialHistogram deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.EXPONENTIAL_HISTOGRAM);
+        final var target = SketchSerialization.readInt(buffer, Integer.MIN_VALUE, Integer.MAX_VALUE, "target");
+        final var maxBucketsForSize = SketchSerialization.readInt(buffer, 2, Integer.MAX_VALUE, "maximum buckets per size");
+        final var totalArrivals = SketchSerialization.readInt(buffer, 0, Integer.MAX_VALUE, "total arrivals");
+        final var histogram = new ExponentialHistogram(target, maxBucketsForSize, totalArrivals);
+        final var nrOfSizes = SketchSerialization.readInt(buffer, 1, 32, "number of bucket sizes");
+        for (int i = 0; i < nrOfSizes; i++) {
+            final var bucketSize = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE, "bucket size");
+            if (Integer.bitCount(bucketSize) != 1 || histogram.buckets.containsKey(bucketSize)) {
+                throw new IllegalArgumentException("Invalid bucket size: " + bucketSize);
+            }
+            final var nrOfBuckets = SketchSerialization.readInt(buffer, 0, maxBucketsForSize, "number of buckets");
+            Queue<Bucket> queue = new LinkedList<>();
+            for (int j = 0; j < nrOfBuckets; j++) {
+                final var count = SketchSerialization.readInt(buffer, 1, Integer.MAX_VALUE, "bucket count");
+                final var firstArrival = SketchSerialization.readInt(buffer, 1, totalArrivals, "first arrival");
+                queue.add(new Bucket(count, firstArrival));
+            }
+            histogram.buckets.put(bucketSize, queue);
+            histogram.addBuckets(bucketSize, nrOfBuckets);
+        }
+        if (!histogram.buckets.containsKey(1)) {
+            throw new IllegalArgumentException("Histogram is missing the buckets of size 1.");
+        }
+        SketchSerialization.checkFullyRead(buffer);
+        return histogram;
+    }
 
+    /**
+     * Reports the number of buckets of every size and the number of merges.
+     * Only reads values that are published on the write path, so it is safe to call from another thread.
+     * Like the merges, the bucket counts are only recorded when metrics are enabled.
+     * @return the metrics of the histogram
+     */
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("totalArrivals", totalArrivals);
+        snapshot.put("merges", merges.getCount());
+        if (!Metrics.ENABLED) {
+            return snapshot;
+        }
+        int largest = 0;
+        for (int i = 0; i < bucketsPerSize.length(); i++) {
+            if (bucketsPerSize.get(i) > 0) {
+                largest = i;
+            }
+        }
+        for (int i = 0; i <= largest; i++) {
+            snapshot.put("buckets.size" + (1L << i), bucketsPerSize.get(i));
+        }
+        return snapshot;
+    }
 }
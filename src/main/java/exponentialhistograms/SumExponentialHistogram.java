@@ -0,0 +1,238 @@
+package exponentialhistograms;
+
+import metrics.Instrumented;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An exponential histogram for the sum and average of non-negative integers over a sliding window of the last N arrivals,
+ * e.g. the bytes per request of the last 100000 requests.
+ *
+ * Every value is split into its bits: a value with bit b set counts as an arrival for the histogram of bit b,
+ * and the sum over a window is the sum of 2^b times the (estimated) number of arrivals of every bit in that window.
+ * Every bit histogram is a plain exponential histogram that counts with a relative error of at most epsilon,
+ * so the sum has a relative error of at most epsilon too, since all terms are non-negative.
+ * An update costs O(1) amortized per set bit of the value, and the memory is O((1/epsilon) * log(N) * log(R)) for values
+ * up to R. The number of arrivals in a window is known exactly, so the mean has the same relative error as the sum.
+ *
+ * Unlike {@link ExponentialHistogram}, buckets are stored as timestamps in primitive ring buffers (the size of a bucket
+ * follows from its level). Buckets that fall out of the largest window are dropped when their bit histogram gets
+ * a new arrival, so an update only touches the histograms of the set bits. Until then, queries skip them.
+ */
+public class SumExponentialHistogram implements Instrumented {
+
+    private final int maxBucketsForSize;
+
+    private final long windowSize;
+
+    private final long maxValue;
+
+    private final BitHistogram[] bits;
+
+    private long totalArrivals = 0;
+
+    /**
+     * Creates a new SumExponentialHistogram.
+     * @param epsilon the relative error of the sum
+     * @param windowSize the largest window that can be queried, in arrivals
+     * @param maxValue the largest value that can be added
+     */
+    public SumExponentialHistogram(double epsilon, long windowSize, long maxValue) {
+        if (epsilon <= 0 || epsilon >= 1) {
+            throw new IllegalArgumentException("epsilon must be between 0 and 1.");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The window size must be positive.");
+        }
+        if (maxValue <= 0) {
+            throw new IllegalArgumentException("The maximum value must be positive.");
+        }
+        double k = 1 / epsilon;
+        // same as ExponentialHistogram, at least 2 buckets per size so we can merge
+        this.maxBucketsForSize = Math.max((int) Math.ceil(k / 2) + 1, 2);
+        this.windowSize = windowSize;
+        this.maxValue = maxValue;
+        // a bucket at level i holds 2^i arrivals, and no bucket holds more than the window
+        final var levels = Long.SIZE - Long.numberOfLeadingZeros(windowSize) + 1;
+        this.bits = new BitHistogram[Long.SIZE - Long.numberOfLeadingZeros(maxValue)];
+        for (int b = 0; b < bits.length; b++) {
+            bits[b] = new BitHistogram(levels, maxBucketsForSize + 1);
+        }
+    }
+
+    /**
+     * Adds a value to the histogram.
+     * @param value the value to add, between 0 and the maximum value
+     */
+    public void add(long value) {
+        if (value < 0 || value > maxValue) {
+            throw new IllegalArgumentException("Value out of range: " + value);
+        }
+        totalArrivals++;
+        final var expired = totalArrivals - windowSize;
+        for (long remaining = value; remaining != 0; remaining &= remaining - 1) {
+            final var bit = bits[Long.numberOfTrailingZeros(remaining)];
+            bit.add(totalArrivals, maxBucketsForSize);
+            // the other bits keep their old buckets until they are touched, countSince stops before them
+            bit.expire(expired);
+        }
+    }
+
+    /**
+     * Returns an estimation of the sum of the values in the last givenWindow arrivals.
+     * @param givenWindow the window to look at, at most the window size
+     * @return the estimation
+     */
+    public double getSumEstimation(long givenWindow) {
+        checkWindow(givenWindow);
+        final var since = totalArrivals - givenWindow;
+        double sum = 0;
+        for (int b = 0; b < bits.length; b++) {
+            sum += Math.scalb(bits[b].countSince(since), b);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of arrivals in the last givenWindow arrivals, which is exact.
+     * @param givenWindow the window to look at, at most the window size
+     * @return the number of arrivals
+     */
+    public long getCount(long givenWindow) {
+        checkWindow(givenWindow);
+        return Math.min(givenWindow, totalArrivals);
+    }
+
+    /**
+     * Returns an estimation of the mean of the values in the last givenWindow arrivals.
+     * @param givenWindow the window to look at, at most the window size
+     * @return the estimation, or NaN if there were no arrivals
+     */
+    public double getMeanEstimation(long givenWindow) {
+        return getSumEstimation(givenWindow) / getCount(givenWindow);
+    }
+
+    private void checkWindow(long givenWindow) {
+        if (givenWindow <= 0 || givenWindow > windowSize) {
+            throw new IllegalArgumentException("The window must be between 1 and " + windowSize + ".");
+        }
+    }
+
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        final var expired = totalArrivals - windowSize;
+        int buckets = 0;
+        for (BitHistogram bit : bits) {
+            buckets += bit.buckets(expired);
+        }
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("totalArrivals", totalArrivals);
+        snapshot.put("buckets", buckets);
+        return snapshot;
+    }
+
+    /**
+     * A counting exponential histogram for a single bit.
+     * Level i holds the buckets of size 2^i as a ring buffer of the timestamps of their newest arrival.
+     * Higher levels hold older buckets, and within a level the oldest bucket is at the head.
+     */
+    private static final class BitHistogram {
+
+        private final long[][] timestamps;
+        private final int[] heads;
+        private final int[] sizes;
+        // the number of levels that have been used
+        private int levels = 0;
+
+        private BitHistogram(int maxLevels, int capacity) {
+            this.timestamps = new long[maxLevels][capacity];
+            this.heads = new int[maxLevels];
+            this.sizes = new int[maxLevels];
+        }
+
+        private void add(long timestamp, int maxBucketsForSize) {
+            push(0, timestamp);
+            // invariant 2: merge the two oldest buckets of a level that has too many
+            for (int level = 0; sizes[level] > maxBucketsForSize && level + 1 < timestamps.length; level++) {
+                poll(level);
+                // the merged bucket keeps the timestamp of the newer of the two
+                push(level + 1, poll(level));
+            }
+        }
+
+        /**
+         * Drops the buckets whose newest arrival is at or before the given timestamp, which are all at the oldest end.
+         * @param expired the last timestamp that is out of the window
+         */
+        private void expire(long expired) {
+            while (levels > 0) {
+                final var top = levels - 1;
+                if (sizes[top] == 0) {
+                    levels--;
+                } else if (timestamps[top][heads[top]] <= expired) {
+                    poll(top);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Estimates the number of arrivals after the given timestamp.
+         * Buckets are visited from new to old. The oldest bucket that is still in the window may only partly be in it,
+         * so we count half of it (its newest arrival is in the window for sure).
+         * @param since the last timestamp that is out of the window
+         * @return the estimation
+         */
+        private double countSince(long since) {
+            long count = 0;
+            long oldestSize = 0;
+            for (int level = 0; level < levels; level++) {
+                final var row = timestamps[level];
+                for (int j = sizes[level] - 1; j >= 0; j--) {
+                    if (row[(heads[level] + j) % row.length] <= since) {
+                        return count - (oldestSize - 1) / 2.0;
+                    }
+                    oldestSize = 1L << level;
+                    count += oldestSize;
+                }
+            }
+            return oldestSize == 0 ? 0 : count - (oldestSize - 1) / 2.0;
+        }
+
+        /**
+         * Counts the buckets that are still in the window, without dropping the others.
+         * @param expired the last timestamp that is out of the window
+         * @return the number of buckets
+         */
+        private int buckets(long expired) {
+            int buckets = 0;
+            for (int level = 0; level < levels; level++) {
+                final var row = timestamps[level];
+                for (int j = 0; j < sizes[level]; j++) {
+                    final var index = heads[level] + j;
+                    if (row[index < row.length ? index : index - row.length] > expired) {
+                        buckets++;
+                    }
+                }
+            }
+            return buckets;
+        }
+
+        private void push(int level, long timestamp) {
+            final var row = timestamps[level];
+            final var tail = heads[level] + sizes[level];
+            row[tail < row.length ? tail : tail - row.length] = timestamp;
+            sizes[level]++;
+            levels = Math.max(levels, level + 1);
+        }
+
+        private long poll(int level) {
+            final var timestamp = timestamps[level][heads[level]];
+            heads[level] = heads[level] + 1 == timestamps[level].length ? 0 : heads[level] + 1;
+            sizes[level]--;
+            return timestamp;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package fmsketches;
 
+import metrics.Instrumented;
 import utils.HashFunction;
 import utils.HashUtils;
+import utils.SketchSerialization;
+import utils.SketchType;
 
-public class FMsketch {
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FMsketch implements Instrumented {
 
     final boolean[][] sketch;
 
@@ -11,15 +18,31 @@ public class FMsketch {
 
     final double scalingFactor = 1.3;
 
+    private static final int NUMBER_OF_HASH_FUNCTIONS = 10;
+
     public FMsketch(double epsilon, double delta){
         // usually we calculate the number of hash functions like this:
         // final var numberOfHashFunctions = (int) (1/ Math.pow(epsilon, 2) * Math.log(1/delta));
         // I dont have enough prime numbers for this, so i'm just going to hardcode it for this example
         // usually you would use many many hash functions
-        final var numberOfHashFunctions = 10;
-        this.hashFunctions = HashUtils.getHashFunctions(numberOfHashFunctions);
-        this.sketch = new boolean[numberOfHashFunctions][32];
+        this.hashFunctions = HashUtils.getHashFunctions(NUMBER_OF_HASH_FUNCTIONS);
+        this.sketch = new boolean[NUMBER_OF_HASH_FUNCTIONS][Integer.SIZE];
+
+    }
+
+    /**
+     * Returns the memory the bits of a sketch with the given parameters take, without creating it.
+     * @param epsilon the error
+     * @param delta the confidence
+     * @return the size in bytes, a boolean per bit
+     */
+    public static long sizeInBytes(double epsilon, double delta){
+        return (long) NUMBER_OF_HASH_FUNCTIONS * Integer.SIZE;
+    }
 
+    private FMsketch(boolean[][] sketch, HashFunction[] hashFunctions){
+        this.sketch = sketch;
+        this.hashFunctions = hashFunctions;
     }
 
     /**
@@ -53,5 +76,81 @@ public class FMsketch {
 
     }
 
+    /**
+     * Merges another sketch into this one, after which it estimates the number of distinct values seen by both.
+     * @param other the sketch to merge, which must have the same hash functions
+     */
+    public void merge(FMsketch other){
+        if (!HashUtils.sameHashFunctions(hashFunctions, other.hashFunctions)) {
+            throw new IllegalArgumentException("Can only merge FM sketches with the same hash functions.");
+        }
+        for (int i = 0; i < sketch.length; i++) {
+            for (int j = 0; j < sketch[i].length; j++) {
+                sketch[i][j] |= other.sketch[i][j];
+            }
+        }
+    }
 
+    /**
+     * Resets the sketch, so it is empty again.
+     */
+    public void clear(){
+        for (boolean[] row : sketch) {
+            Arrays.fill(row, false);
+        }
+    }
+
+    /**
+     * Serializes the sketch into the compact binary format of {@link SketchSerialization}.
+     * Each row of 32 bits is packed into a single word.
+     * @return the serialized sketch
+     */
+    public byte[] serialize(){
+        int size = SketchSerialization.hashFunctionsSize(hashFunctions);
+        for (boolean[] row : sketch) {
+            size += SketchSerialization.bitsSize(row);
+        }
+        final var buffer = SketchSerialization.allocate(SketchType.FM_SKETCH, size);
+        SketchSerialization.writeHashFunctions(buffer, hashFunctions);
+        for (boolean[] row : sketch) {
+            SketchSerialization.writeBits(buffer, row);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Restores a sketch that was serialized with {@link #serialize()}.
+     * @param bytes the serialized sketch
+     * @return the restored sketch
+     */
+    public static FMsketch deserialize(byte[] bytes){
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.FM_SKETCH);
+        final var hashFunctions = SketchSerialization.readHashFunctions(buffer);
+        if (hashFunctions.length == 0) {
+            throw new IllegalArgumentException("An FM sketch needs at least one hash function.");
+        }
+        final var sketch = new boolean[hashFunctions.length][];
+        for (int i = 0; i < hashFunctions.length; i++) {
+            sketch[i] = SketchSerialization.readBits(buffer, 32);
+        }
+        SketchSerialization.checkFullyRead(buffer);
+        return new FMsketch(sketch, hashFunctions);
+    }
+
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        int bitsSet = 0;
+        for (boolean[] row : sketch) {
+            for (boolean bit : row) {
+                if (bit) {
+                    bitsSet++;
+                }
+            }
+        }
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("hashFunctions", hashFunctions.length);
+        snapshot.put("bitsSet", bitsSet);
+        snapshot.put("estimatedDistinct", countDistinct());
+        return snapshot;
+    }
 }
@@ -0,0 +1,280 @@
+package ingestion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Lets many threads feed values into sketches that are not thread safe, without a lock around every add.
+ * Producers publish values into a preallocated ring of int slots (like the LMAX Disruptor): a producer claims a sequence
+ * number with a single atomic increment, writes the value into its slot and marks the slot as published.
+ * A single writer thread takes the published values in batches and passes every batch to all sinks, e.g.
+ * CountMinSketch::addAll, so the sketches are only ever touched by that thread and the batch paths are used.
+ *
+ * Queries also run on the writer thread, between two batches, so they see every sketch in the same consistent state.
+ * A query sees at least all values that were published before it was called.
+ * When the ring is full, {@link #publish} spins until the writer catches up and {@link #tryPublish} returns false.
+ *
+ * If a sink throws, the writer stops: the failure is kept, pending and later queries fail with it,
+ * and publish, tryPublish and close throw an IllegalStateException with it as the cause.
+ */
+public class SketchIngestion implements AutoCloseable {
+
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private final int[] slots;
+
+    private final int mask;
+
+    // per slot the sequence number that was last published into it, -1 if none
+    private final AtomicLongArray published;
+
+    // the next sequence number to claim
+    private final AtomicLong claimed = new AtomicLong();
+
+    // all sequence numbers below this one have been passed to the sinks
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final List<Consumer<int[]>> sinks;
+
+    private final int maxBatchSize;
+
+    private final Queue<Query<?>> queries = new ConcurrentLinkedQueue<>();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    // set by the writer when it stops, after which it no longer runs queries
+    private volatile boolean stopped = false;
+
+    // the exception of the sink that failed, if any
+    private volatile Throwable failure;
+
+    /**
+     * A query that waits until the writer has consumed everything up to its target sequence.
+     */
+    private static class Query<R> {
+        private final Supplier<R> query;
+        private final long target;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+
+        private Query(Supplier<R> query, long target) {
+            this.query = query;
+            this.target = target;
+        }
+
+        private void run() {
+            try {
+                result.complete(query.get());
+            } catch (Throwable e) {
+                // also errors, which would otherwise end the writer and leave every caller waiting
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Creates the ring and starts the writer thread.
+     * @param capacity the number of slots, a power of two
+     * @param maxBatchSize the largest number of values passed to the sinks at once
+     * @param sinks the batch adds of the sketches to feed, e.g. CountMinSketch::addAll
+     */
+    public SketchIngestion(int capacity, int maxBatchSize, List<Consumer<int[]>> sinks) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two.");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive.");
+        }
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.maxBatchSize = Math.min(maxBatchSize, capacity);
+        this.sinks = new ArrayList<>(sinks);
+        this.writer = new Thread(this::write, "sketch-ingestion-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Publishes a value, waiting for a free slot if the ring is full.
+     * @param value the value to add to the sketches
+     */
+    public void publish(int value) {
+        checkRunning();
+        final var sequence = claimed.getAndIncrement();
+        for (int spins = 0; sequence - slots.length >= consumed.get(); spins++) {
+            checkFailure();
+            if (spins < SPINS_BEFORE_PARKING) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        put(sequence, value);
+    }
+
+    /**
+     * Publishes a value if there is a free slot, without waiting.
+     * @param value the value to add to the sketches
+     * @return true if the value was published, false if the ring is full
+     */
+    public boolean tryPublish(int value) {
+        checkRunning();
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - slots.length >= consumed.get()) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        put(sequence, value);
+        return true;
+    }
+
+    private void put(long sequence, int value) {
+        final var index = (int) sequence & mask;
+        slots[index] = value;
+        // the release store makes the value visible to the writer before the slot shows up as published
+        published.setRelease(index, sequence);
+    }
+
+    /**
+     * Runs a query on the writer thread, after all values that were published before this call were added.
+     * @param query the query, which may read the sketches but not keep references to them
+     * @param <R> the type of the result
+     * @return the result of the query
+     */
+    public <R> R query(Supplier<R> query) {
+        checkRunning();
+        final var pending = new Query<>(query, claimed.get());
+        queries.add(pending);
+        if (stopped) {
+            // the writer may have stopped before it could see the query
+            failQueries();
+        }
+        LockSupport.unpark(writer);
+        return pending.result.join();
+    }
+
+    private void write() {
+        final var batch = new int[maxBatchSize];
+        var next = 0L;
+        int idleSpins = 0;
+        while (running || next < claimed.get()) {
+            final var size = drain(next, batch);
+            if (size > 0) {
+                next += size;
+                final var values = size == batch.length ? batch : Arrays.copyOf(batch, size);
+                try {
+                    for (Consumer<int[]> sink : sinks) {
+                        sink.accept(values);
+                    }
+                } catch (RuntimeException | Error e) {
+                    // the sketches may be half updated, so we stop rather than give inconsistent answers
+                    failure = e;
+                    break;
+                }
+                consumed.set(next);
+                idleSpins = 0;
+            }
+            runQueries(next);
+            if (size == 0) {
+                if (idleSpins++ < SPINS_BEFORE_PARKING) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        }
+        if (failure == null) {
+            runQueries(Long.MAX_VALUE);
+        }
+        stopped = true;
+        failQueries();
+    }
+
+    /**
+     * Copies the published values from a sequence number on into the batch, up to the first slot that is not published yet.
+     * @param next the first sequence number to take
+     * @param batch the batch to fill
+     * @return the number of values taken
+     */
+    private int drain(long next, int[] batch) {
+        int size = 0;
+        while (size < batch.length) {
+            final var sequence = next + size;
+            final var index = (int) sequence & mask;
+            if (published.getAcquire(index) != sequence) {
+                break;
+            }
+            batch[size++] = slots[index];
+        }
+        return size;
+    }
+
+    private void runQueries(long next) {
+        for (var iterator = queries.iterator(); iterator.hasNext(); ) {
+            final var pending = iterator.next();
+            if (pending.target <= next) {
+                iterator.remove();
+                pending.run();
+            }
+        }
+    }
+
+    /**
+     * Completes the queries that will never run, because the writer stopped.
+     */
+    private void failQueries() {
+        Query<?> pending;
+        while ((pending = queries.poll()) != null) {
+            pending.result.completeExceptionally(failure != null
+                    ? new IllegalStateException("A sink failed, the ingestion stopped.", failure)
+                    : new IllegalStateException("The ingestion is closed."));
+        }
+    }
+
+    private void checkRunning() {
+        checkFailure();
+        if (!running) {
+            throw new IllegalStateException("The ingestion is closed.");
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("A sink failed, the ingestion stopped.", failure);
+        }
+    }
+
+    /**
+     * Stops accepting values, waits until the writer has added all values that were published and stops it.
+     * Producers should be stopped first, a value that is published while closing may be dropped.
+     * @throws IllegalStateException if a sink failed, so not all values were added
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+}
@@ -0,0 +1,326 @@
+package kllsketch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An implementation of the KLL quantile sketch (Karnin, Lang and Liberty, 2016).
+ * Unlike the CMRangeSketch this is a comparison based summary, so it does not need a bounded integer domain
+ * and an update costs O(1) amortized instead of a Count-Min update for every dyadic level.
+ *
+ * The sketch is a stack of compactors. Level h holds items that each represent 2^h arrivals.
+ * When a level is full it is sorted and every other item (starting at a random offset) is promoted to the next level,
+ * the other half is thrown away. The random offset makes the rank error of a compaction zero in expectation.
+ * The capacity of a level shrinks by a factor 2/3 for every level below the top, with the top level holding k items,
+ * so the sketch retains about 3k items in total.
+ * With probability 1 - delta the rank error is at most epsilon * n for k = O((1/epsilon) * sqrt(log(1/delta))).
+ *
+ * All values are stored as doubles, so ints and doubles are exact. Longs above 2^53 in magnitude (e.g. nanosecond
+ * timestamps or 64 bit ids) are rounded to the nearest double, a relative error of at most 2^-53, far below the rank error.
+ * Values that round to the same double are ranked as equal.
+ */
+public class KLLSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 8;
+
+    private final int k;
+
+    // the compactors, level h only uses the first sizes[h] items of levels[h]
+    private double[][] levels;
+    private int[] sizes;
+
+    // cached, so the hot path of add does not need to recompute them
+    private int[] capacities;
+    private int retained = 0;
+    private int totalCapacity;
+
+    private long n = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private final Random random = new Random();
+
+    /**
+     * Creates a new KLL sketch with the default k of 200 (a normalized rank error of about 1.3%).
+     */
+    public KLLSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Creates a new KLL sketch.
+     * @param k the capacity of the top compactor, which determines the accuracy (error is roughly proportional to 1/k)
+     */
+    public KLLSketch(int k) {
+        if (k < 8) {
+            throw new IllegalArgumentException("k must be at least 8.");
+        }
+        this.k = k;
+        this.levels = new double[][]{new double[k]};
+        this.sizes = new int[1];
+        updateCapacities();
+    }
+
+    public void add(int value) {
+        add((double) value);
+    }
+
+    /**
+     * Adds a long value to the sketch, rounded to the nearest double if it is above 2^53 in magnitude.
+     * @param value the value to add
+     */
+    public void add(long value) {
+        add((double) value);
+    }
+
+    /**
+     * Adds a value to the sketch.
+     * The compactors are only compressed once the sketch holds more items than its total capacity,
+     * which keeps the amortized cost of an update constant.
+     * @param value the value to add
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("NaN can't be ranked.");
+        }
+        if (retained >= totalCapacity) {
+            compress();
+        }
+        append(0, value);
+        n++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Merges another sketch into this one, for example the sketch of another partition.
+     * The other sketch is not modified. It may be this sketch, which then counts every item twice.
+     * @param other the sketch to merge
+     */
+    public void merge(KLLSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Can only merge KLL sketches with the same k.");
+        }
+        // if other is this, appending grows the levels we read from, so we only read up to the sizes from before
+        final var otherLevels = other.levels.clone();
+        final var otherSizes = other.sizes.clone();
+        for (int h = 0; h < otherLevels.length; h++) {
+            for (int i = 0; i < otherSizes[h]; i++) {
+                append(h, otherLevels[h][i]);
+            }
+        }
+        n += other.n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        while (retained >= totalCapacity) {
+            compress();
+        }
+    }
+
+    /**
+     * Returns the estimated rank of a value: the number of arrivals that are smaller than or equal to it.
+     * @param value the value to rank
+     * @return the estimated rank
+     */
+    public long rank(double value) {
+        long rank = 0;
+        for (int h = 0; h < levels.length; h++) {
+            long count = 0;
+            for (int i = 0; i < sizes[h]; i++) {
+                if (levels[h][i] <= value) {
+                    count++;
+                }
+            }
+            rank += count << h;
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the estimated cumulative distribution function at the given split points.
+     * @param splitPoints the values to evaluate the CDF at
+     * @return for every split point, the estimated fraction of arrivals smaller than or equal to it
+     */
+    public double[] cdf(double[] splitPoints) {
+        final var cdf = new double[splitPoints.length];
+        if (n == 0) {
+            return cdf;
+        }
+        for (int i = 0; i < splitPoints.length; i++) {
+            cdf[i] = (double) rank(splitPoints[i]) / n;
+        }
+        return cdf;
+    }
+
+    /**
+     * Returns the estimated phi-quantile: the smallest retained value whose rank is at least phi times the number of arrivals.
+     * @param phi the quantile to look for, between 0 and 1 (0.5 is the median)
+     * @return the estimated quantile
+     */
+    public double quantile(double phi) {
+        return quantiles(new double[]{phi})[0];
+    }
+
+    /**
+     * Returns several quantiles at once, which only needs to sort the retained items a single time.
+     * @param phis the quantiles to look for, each between 0 and 1
+     * @return the estimated quantiles
+     */
+    public double[] quantiles(double[] phis) {
+        if (n == 0) {
+            throw new IllegalStateException("The sketch is empty.");
+        }
+        final var values = new double[retained];
+        final var weights = new long[retained];
+        sortedView(values, weights);
+        final var quantiles = new double[phis.length];
+        for (int q = 0; q < phis.length; q++) {
+            final var phi = phis[q];
+            if (phi < 0 || phi > 1) {
+                throw new IllegalArgumentException("phi must be between 0 and 1.");
+            }
+            if (phi == 0) {
+                quantiles[q] = min;
+                continue;
+            }
+            if (phi == 1) {
+                quantiles[q] = max;
+                continue;
+            }
+            final var target = phi * n;
+            long cumulativeWeight = 0;
+            quantiles[q] = max;
+            for (int i = 0; i < retained; i++) {
+                cumulativeWeight += weights[i];
+                if (cumulativeWeight >= target) {
+                    quantiles[q] = values[i];
+                    break;
+                }
+            }
+        }
+        return quantiles;
+    }
+
+    /**
+     * An a priori estimate of the normalized rank error, |estimated rank - actual rank| / n, at 99% confidence.
+     * The constants are the empirical fit from the Apache DataSketches implementation of KLL.
+     * @return the normalized rank error
+     */
+    public double getNormalizedRankError() {
+        return 2.296 / Math.pow(k, 0.9723);
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public int retainedItems() {
+        return retained;
+    }
+
+    /**
+     * Recomputes the capacity of every level, which shrinks geometrically with the distance to the top level.
+     * This only has to happen when a level is added.
+     */
+    private void updateCapacities() {
+        capacities = new int[levels.length];
+        totalCapacity = 0;
+        for (int h = 0; h < levels.length; h++) {
+            final var depth = levels.length - 1 - h;
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+            totalCapacity += capacities[h];
+        }
+    }
+
+    /**
+     * Compacts the lowest level that is at or over its capacity.
+     * There always is one, because we only compress when the sketch is at or over its total capacity.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h]) {
+                compact(h);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sorts a level and promotes every other item to the next level.
+     * If the level holds an odd number of items, the smallest one stays behind.
+     * @param h the level to compact
+     */
+    private void compact(int h) {
+        final var level = levels[h];
+        final var size = sizes[h];
+        Arrays.sort(level, 0, size);
+        final var odd = size & 1;
+        final var offset = random.nextBoolean() ? 1 : 0;
+        for (int i = odd + offset; i < size; i += 2) {
+            append(h + 1, level[i]);
+        }
+        retained -= size - odd;
+        sizes[h] = odd;
+    }
+
+    private void append(int h, double value) {
+        while (h >= levels.length) {
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new double[k];
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            updateCapacities();
+        }
+        if (sizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], levels[h].length * 2);
+        }
+        levels[h][sizes[h]++] = value;
+        retained++;
+    }
+
+    /**
+     * Fills the given arrays with all retained items in sorted order and their weights.
+     * Every level is sorted on its own and then merged into the result, like a merge sort.
+     * @param values the array for the values, of length retainedItems()
+     * @param weights the array for the weights, of length retainedItems()
+     */
+    private void sortedView(double[] values, long[] weights) {
+        final var bufferValues = new double[values.length];
+        final var bufferWeights = new long[weights.length];
+        int filled = 0;
+        for (int h = 0; h < levels.length; h++) {
+            final var size = sizes[h];
+            if (size == 0) {
+                continue;
+            }
+            final var level = Arrays.copyOf(levels[h], size);
+            Arrays.sort(level);
+            // merge the sorted level with the items we already have
+            int i = 0;
+            int j = 0;
+            int out = 0;
+            while (i < filled || j < size) {
+                if (j == size || (i < filled && values[i] <= level[j])) {
+                    bufferValues[out] = values[i];
+                    bufferWeights[out++] = weights[i++];
+                } else {
+                    bufferValues[out] = level[j++];
+                    bufferWeights[out++] = 1L << h;
+                }
+            }
+            filled = out;
+            System.arraycopy(bufferValues, 0, values, 0, filled);
+            System.arraycopy(bufferWeights, 0, weights, 0, filled);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package metrics;
+
+/**
+ * A simple event counter.
+ * Like the sketches themselves it assumes a single writer, reads from other threads (e.g. JMX) may be slightly stale.
+ */
+public class Counter {
+
+    private long count = 0;
+
+    public void increment() {
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,70 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * A histogram of non-negative values with power-of-two buckets.
+ * Bucket b holds the values in [2^(b-1), 2^b - 1] (bucket 0 only holds 0), so recording a value is a
+ * numberOfLeadingZeros and an array increment.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ * Like the sketches themselves it assumes a single writer, reads from other threads (e.g. JMX) may be slightly stale.
+ */
+public class Histogram {
+
+    private final long[] buckets = new long[Long.SIZE + 1];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Records a value.
+     * @param value the value to record, must be non-negative
+     */
+    public void record(long value) {
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile.
+     * @param percentile the percentile, between 0 and 1
+     * @return the upper bound of the bucket the percentile falls in
+     */
+    public long getPercentile(double percentile) {
+        final var target = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= target && seen > 0) {
+                return Math.min(max, b == 0 ? 0 : (1L << b) - 1);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the summary statistics of this histogram to a metrics snapshot.
+     * @param prefix the prefix of the metric names
+     * @param snapshot the snapshot to add to
+     */
+    public void addTo(String prefix, Map<String, Number> snapshot) {
+        snapshot.put(prefix + ".count", getCount());
+        snapshot.put(prefix + ".mean", getMean());
+        snapshot.put(prefix + ".p99", getPercentile(0.99));
+        snapshot.put(prefix + ".max", getMax());
+    }
+}
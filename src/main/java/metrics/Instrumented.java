@@ -0,0 +1,17 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * A sketch that can report metrics about how full or degraded it is.
+ */
+public interface Instrumented {
+
+    /**
+     * Takes a snapshot of the metrics of the sketch.
+     * Values that are derived from the state of the sketch (e.g. fill ratios) are computed on demand,
+     * so they cost nothing on the hot path.
+     * @return a map from metric name to value, in a stable order
+     */
+    Map<String, Number> metricsSnapshot();
+}
@@ -0,0 +1,73 @@
+package metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point of the metrics layer.
+ * Hot path instrumentation (e.g. kick chain lengths of the cuckoo filter) is only recorded when the JVM is started with
+ * -Dsketches.metrics=true. The flag is a static final, so when it is off the JIT removes the instrumentation completely.
+ * Metrics that can be derived from the state of a sketch are computed when a snapshot is taken and are always available.
+ * Registered sketches are exposed as JMX MBeans under the domain "sketches", so they can be monitored and alerted on.
+ */
+public class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("sketches.metrics");
+
+    private static final String DOMAIN = "sketches";
+
+    private static final Map<String, Instrumented> registered = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a sketch under a name and exposes it as an MBean.
+     * @param name the name of the sketch, unique among the registered sketches
+     * @param sketch the sketch to register
+     */
+    public static void register(String name, Instrumented sketch) {
+        if (registered.putIfAbsent(name, sketch) != null) {
+            throw new IllegalArgumentException("A sketch with name " + name + " is already registered.");
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new SketchMBean(sketch), objectName(name, sketch));
+        } catch (JMException e) {
+            registered.remove(name);
+            throw new IllegalStateException("Could not register the MBean of " + name, e);
+        }
+    }
+
+    /**
+     * Removes a sketch from the registry and from JMX.
+     * @param name the name the sketch was registered under
+     */
+    public static void unregister(String name) {
+        final var sketch = registered.remove(name);
+        if (sketch == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name, sketch));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister the MBean of " + name, e);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the metrics of all registered sketches.
+     * @return a map from sketch name to its metrics
+     */
+    public static Map<String, Map<String, Number>> snapshot() {
+        Map<String, Map<String, Number>> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Instrumented> entry : registered.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().metricsSnapshot());
+        }
+        return snapshot;
+    }
+
+    private static ObjectName objectName(String name, Instrumented sketch) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + sketch.getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+    }
+}
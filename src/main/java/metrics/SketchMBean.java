@@ -0,0 +1,72 @@
+package metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+import java.util.Map;
+
+/**
+ * Exposes the metrics snapshot of a sketch as read-only JMX attributes.
+ * The attributes are read from a fresh snapshot, and the set of attributes may change over time
+ * (e.g. when an exponential histogram grows a new bucket size), which is why this is a dynamic MBean.
+ */
+class SketchMBean implements DynamicMBean {
+
+    private final Instrumented sketch;
+
+    SketchMBean(Instrumented sketch) {
+        this.sketch = sketch;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final var value = sketch.metricsSnapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final var snapshot = sketch.metricsSnapshot();
+        final var list = new AttributeList();
+        for (String attribute : attributes) {
+            if (snapshot.containsKey(attribute)) {
+                list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Sketch metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new UnsupportedOperationException(actionName), "Sketch MBeans have no operations.");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final var snapshot = sketch.metricsSnapshot();
+        final var attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(sketch.getClass().getName(), "Metrics of a sketch", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,329 @@
+package registry;
+
+import bloomfilters.BloomFilter;
+import cmsketch.CountMinSketch;
+import fmsketches.FMsketch;
+import metrics.Instrumented;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe registry of sketches by key, e.g. one sketch per tenant or per metric.
+ * Sketches are created lazily from a template the first time a key is used.
+ * The registry keeps track of the memory the sketches in memory take, and when that exceeds the budget,
+ * the least recently used sketches are written to a spill directory and dropped from memory.
+ * Using a spilled sketch again reads it back, transparently for the caller.
+ *
+ * Sketches are only accessed through {@link #update} and {@link #read}, with the sketch locked for the duration of
+ * the callback, so a sketch can't be spilled while it is being used. Callbacks for different keys run in parallel.
+ * A sketch that was only read since it was loaded still matches its spill file, so spilling it again is free.
+ * @param <T> the type of the sketches
+ */
+public class SketchRegistry<T> implements Instrumented, AutoCloseable {
+
+    private final Supplier<T> factory;
+
+    private final Function<T, byte[]> serializer;
+
+    private final Function<byte[], T> deserializer;
+
+    private final long bytesPerSketch;
+
+    private final long budgetBytes;
+
+    // a directory of its own inside the given spill directory, so registries can share that
+    private final Path spillDirectory;
+
+    private final ConcurrentHashMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    // the entries that are in memory, least recently used first, guarded by itself
+    private final LinkedHashMap<String, Entry<T>> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    private final AtomicLong nextFileId = new AtomicLong();
+
+    private final AtomicLong spills = new AtomicLong();
+
+    private final AtomicLong faults = new AtomicLong();
+
+    /**
+     * A sketch and where it lives. All fields are guarded by the entry itself.
+     */
+    private static class Entry<T> {
+        private final Path file;
+        // null while spilled
+        private T sketch;
+        // whether the spill file exists
+        private boolean spilled = false;
+        // whether the sketch changed since it was last written to the spill file
+        private boolean dirty = true;
+        private boolean removed = false;
+
+        private Entry(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Creates a registry for any kind of sketch.
+     * @param factory creates a new, empty sketch
+     * @param serializer serializes a sketch for spilling
+     * @param deserializer restores a spilled sketch
+     * @param bytesPerSketch the memory a single sketch takes
+     * @param budgetBytes the memory all sketches in memory may take together, at least bytesPerSketch
+     * @param spillDirectory the directory to spill sketches to, which is created if needed. Every registry spills to a new
+     *                       subdirectory of it, so several registries (also of other processes) can use the same one.
+     */
+    public SketchRegistry(Supplier<T> factory, Function<T, byte[]> serializer, Function<byte[], T> deserializer,
+                          long bytesPerSketch, long budgetBytes, Path spillDirectory) {
+        if (bytesPerSketch <= 0) {
+            throw new IllegalArgumentException("bytesPerSketch must be positive.");
+        }
+        if (budgetBytes < bytesPerSketch) {
+            throw new IllegalArgumentException("The budget must fit at least one sketch of " + bytesPerSketch + " bytes.");
+        }
+        this.factory = factory;
+        this.serializer = serializer;
+        this.deserializer = deserializer;
+        this.bytesPerSketch = bytesPerSketch;
+        this.budgetBytes = budgetBytes;
+        try {
+            Files.createDirectories(spillDirectory);
+            this.spillDirectory = Files.createTempDirectory(spillDirectory, "registry-");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create a directory in " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Creates a registry of Count-Min Sketches with the same parameters.
+     * @param epsilon the error of every sketch
+     * @param delta the confidence of every sketch
+     * @param budgetBytes the memory budget
+     * @param spillDirectory the directory to spill sketches to
+     * @return the registry
+     */
+    public static SketchRegistry<CountMinSketch> countMinSketches(double epsilon, double delta, long budgetBytes, Path spillDirectory) {
+        return new SketchRegistry<>(() -> new CountMinSketch(epsilon, delta), CountMinSketch::serialize,
+                CountMinSketch::deserialize, CountMinSketch.sizeInBytes(epsilon, delta), budgetBytes, spillDirectory);
+    }
+
+    /**
+     * Creates a registry of bloom filters with the same parameters.
+     * @param falsePositiveRate the false positive rate of every filter
+     * @param n the expected number of elements in every filter
+     * @param budgetBytes the memory budget
+     * @param spillDirectory the directory to spill filters to
+     * @return the registry
+     */
+    public static SketchRegistry<BloomFilter> bloomFilters(double falsePositiveRate, int n, long budgetBytes, Path spillDirectory) {
+        return new SketchRegistry<>(() -> new BloomFilter(falsePositiveRate, n), BloomFilter::serialize,
+                BloomFilter::deserialize, BloomFilter.sizeInBytes(falsePositiveRate, n), budgetBytes, spillDirectory);
+    }
+
+    /**
+     * Creates a registry of FM sketches with the same parameters.
+     * @param epsilon the error of every sketch
+     * @param delta the confidence of every sketch
+     * @param budgetBytes the memory budget
+     * @param spillDirectory the directory to spill sketches to
+     * @return the registry
+     */
+    public static SketchRegistry<FMsketch> fmSketches(double epsilon, double delta, long budgetBytes, Path spillDirectory) {
+        return new SketchRegistry<>(() -> new FMsketch(epsilon, delta), FMsketch::serialize,
+                FMsketch::deserialize, FMsketch.sizeInBytes(epsilon, delta), budgetBytes, spillDirectory);
+    }
+
+    /**
+     * Runs an update on the sketch of a key, creating or loading the sketch if needed.
+     * @param key the key of the sketch
+     * @param update the update, which must not keep a reference to the sketch
+     */
+    public void update(String key, Consumer<T> update) {
+        access(key, sketch -> {
+            update.accept(sketch);
+            return null;
+        }, true);
+    }
+
+    /**
+     * Runs a query on the sketch of a key, creating or loading the sketch if needed.
+     * @param key the key of the sketch
+     * @param query the query, which must not modify the sketch or keep a reference to it
+     * @param <R> the type of the result
+     * @return the result of the query
+     */
+    public <R> R read(String key, Function<T, R> query) {
+        return access(key, query, false);
+    }
+
+    private <R> R access(String key, Function<T, R> operation, boolean modifies) {
+        while (true) {
+            final var entry = entries.computeIfAbsent(key, k -> new Entry<>(spillDirectory.resolve(nextFileId.getAndIncrement() + ".sketch")));
+            final R result;
+            synchronized (entry) {
+                if (entry.removed) {
+                    // removed after we looked it up, try again with a new entry
+                    continue;
+                }
+                if (entry.sketch == null) {
+                    load(entry);
+                }
+                synchronized (lru) {
+                    lru.put(key, entry);
+                }
+                result = operation.apply(entry.sketch);
+                entry.dirty |= modifies;
+            }
+            evictIfNeeded();
+            return result;
+        }
+    }
+
+    private void load(Entry<T> entry) {
+        if (entry.spilled) {
+            try {
+                entry.sketch = deserializer.apply(Files.readAllBytes(entry.file));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load " + entry.file, e);
+            }
+            entry.dirty = false;
+            faults.incrementAndGet();
+        } else {
+            entry.sketch = factory.get();
+        }
+        residentBytes.addAndGet(bytesPerSketch);
+    }
+
+    /**
+     * Spills the least recently used sketches until the sketches in memory fit the budget.
+     * A sketch is only dropped from memory once it was written, so if writing fails it stays in memory and is counted.
+     */
+    private void evictIfNeeded() {
+        while (residentBytes.get() > budgetBytes) {
+            final String key;
+            final Entry<T> victim;
+            synchronized (lru) {
+                final var eldest = lru.entrySet().iterator();
+                if (!eldest.hasNext()) {
+                    return;
+                }
+                final var next = eldest.next();
+                key = next.getKey();
+                victim = next.getValue();
+            }
+            // the victim may have been used again in the meantime, in which case we spill it anyway, which is harmless
+            synchronized (victim) {
+                if (victim.sketch == null) {
+                    // spilled or removed by another thread
+                    synchronized (lru) {
+                        lru.remove(key, victim);
+                    }
+                    continue;
+                }
+                if (victim.dirty || !victim.spilled) {
+                    try {
+                        Files.write(victim.file, serializer.apply(victim.sketch));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not spill to " + victim.file, e);
+                    }
+                    victim.spilled = true;
+                    victim.dirty = false;
+                }
+                synchronized (lru) {
+                    lru.remove(key, victim);
+                }
+                victim.sketch = null;
+                residentBytes.addAndGet(-bytesPerSketch);
+                spills.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes the sketch of a key, from memory and from disk.
+     * @param key the key of the sketch
+     * @return true if there was a sketch for the key
+     */
+    public boolean remove(String key) {
+        final var entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            synchronized (lru) {
+                lru.remove(key, entry);
+            }
+            entry.removed = true;
+            if (entry.sketch != null) {
+                entry.sketch = null;
+                residentBytes.addAndGet(-bytesPerSketch);
+            }
+            deleteSpillFile(entry);
+        }
+        return true;
+    }
+
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    @Override
+    public Map<String, Number> metricsSnapshot() {
+        final var snapshot = new LinkedHashMap<String, Number>();
+        snapshot.put("sketches", entries.size());
+        snapshot.put("resident", residentBytes.get() / bytesPerSketch);
+        snapshot.put("residentBytes", residentBytes.get());
+        snapshot.put("budgetBytes", budgetBytes);
+        snapshot.put("spills", spills.get());
+        snapshot.put("faults", faults.get());
+        return snapshot;
+    }
+
+    /**
+     * Removes all sketches and deletes their spill files and the subdirectory of this registry.
+     * The given spill directory itself is kept.
+     */
+    @Override
+    public void close() {
+        for (String key : entries.keySet()) {
+            remove(key);
+        }
+        try {
+            Files.deleteIfExists(spillDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete " + spillDirectory, e);
+        }
+    }
+
+    private static void deleteSpillFile(Entry<?> entry) {
+        if (!entry.spilled) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete " + entry.file, e);
+        }
+        entry.spilled = false;
+    }
+}
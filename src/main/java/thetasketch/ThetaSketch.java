@@ -0,0 +1,353 @@
+package thetasketch;
+
+import utils.SketchSerialization;
+import utils.SketchType;
+
+import java.util.Arrays;
+
+/**
+ * A k minimum values (KMV) sketch, also known as a theta sketch, for counting distinct values.
+ * Every value is hashed to a 63 bit number, which we see as a uniform random fraction of 2^63.
+ * The sketch keeps the hashes that are smaller than a threshold theta, and lowers theta so that about k of them remain.
+ * If r hashes below theta are retained, the number of distinct values is estimated as r / theta.
+ * The relative standard error is about 1 / sqrt(k).
+ *
+ * Because a sketch holds exactly the hashes of all its values below theta, sketches with the same seed can be combined:
+ * with theta the smaller of the two thetas, the retained hashes of the union, the intersection and the difference
+ * (A and not B) are those of either, both, or A but not B. Unlike FM sketches, this also estimates intersections
+ * and differences, with error bounds that follow from the number of retained hashes.
+ *
+ * The hashes are kept in an open addressing hash set of longs with linear probing (0 marks an empty slot).
+ * The set may grow to 2k hashes, after which the (k+1)th smallest hash becomes the new theta (found with quickselect)
+ * and the set is rebuilt with the k smaller ones. So most updates are rejected with a single compare against theta.
+ */
+public class ThetaSketch {
+
+    /**
+     * The seed that is used if none is given. Only sketches with the same seed can be combined.
+     */
+    public static final long DEFAULT_SEED = 9001;
+
+    private final int k;
+
+    private final long seed;
+
+    // a fraction of 2^63, Long.MAX_VALUE means 1.0 (nothing has been dropped yet)
+    private long theta = Long.MAX_VALUE;
+
+    private long[] table;
+
+    private int retained = 0;
+
+    /**
+     * Creates a new theta sketch.
+     * @param k the number of hashes to keep, the relative error is about 1 / sqrt(k)
+     */
+    public ThetaSketch(int k) {
+        this(k, DEFAULT_SEED);
+    }
+
+    /**
+     * Creates a new theta sketch.
+     * @param k the number of hashes to keep, the relative error is about 1 / sqrt(k)
+     * @param seed the seed of the hash function
+     */
+    public ThetaSketch(int k, long seed) {
+        if (k < 2 || k > 1 << 26) {
+            throw new IllegalArgumentException("k must be between 2 and 2^26.");
+        }
+        this.k = k;
+        this.seed = seed;
+        // at most 2k hashes, so the table is at most half full
+        this.table = new long[tableSize(k)];
+    }
+
+    private static int tableSize(int k) {
+        return Integer.highestOneBit(2 * k - 1) << 2;
+    }
+
+    public void add(int value) {
+        add((long) value);
+    }
+
+    /**
+     * Adds a value to the sketch.
+     * @param value the value to add to the sketch
+     */
+    public void add(long value) {
+        final var hash = hash(value);
+        if (hash >= theta) {
+            return;
+        }
+        insert(hash);
+    }
+
+    private void insert(long hash) {
+        final var mask = table.length - 1;
+        var index = (int) hash & mask;
+        while (table[index] != 0) {
+            if (table[index] == hash) {
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = hash;
+        retained++;
+        if (retained > 2 * k) {
+            rebuild();
+        }
+    }
+
+    private boolean containsHash(long hash) {
+        final var mask = table.length - 1;
+        var index = (int) hash & mask;
+        while (table[index] != 0) {
+            if (table[index] == hash) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Lowers theta to the (k+1)th smallest hash and keeps only the k hashes below it.
+     */
+    private void rebuild() {
+        final var hashes = hashes();
+        theta = select(hashes, k);
+        Arrays.fill(table, 0);
+        retained = 0;
+        for (long hash : hashes) {
+            if (hash < theta) {
+                insert(hash);
+            }
+        }
+    }
+
+    /**
+     * Returns the retained hashes, in no particular order.
+     * @return a new array with the retained hashes
+     */
+    private long[] hashes() {
+        final var hashes = new long[retained];
+        int i = 0;
+        for (long hash : table) {
+            if (hash != 0) {
+                hashes[i++] = hash;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds the element that would be at the given index if the array were sorted, in linear expected time.
+     * The array is reordered.
+     * @param values the values, all distinct
+     * @param n the index
+     * @return the nth smallest value
+     */
+    private static long select(long[] values, int n) {
+        int from = 0;
+        int to = values.length - 1;
+        while (from < to) {
+            // the hashes are random, so the middle element is as good a pivot as any
+            final var pivot = values[(from + to) >>> 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final var swap = values[i];
+                    values[i++] = values[j];
+                    values[j--] = swap;
+                }
+            }
+            if (n <= j) {
+                to = j;
+            } else if (n >= i) {
+                from = i;
+            } else {
+                return values[n];
+            }
+        }
+        return values[n];
+    }
+
+    /**
+     * Returns the estimated number of distinct values.
+     * @return the estimation, which is exact as long as no more than 2k distinct values were added
+     */
+    public double getEstimate() {
+        return retained / getTheta();
+    }
+
+    /**
+     * Returns a lower bound of the number of distinct values.
+     * Each distinct value is retained with probability theta, so the number of retained hashes is binomial,
+     * with a standard deviation of about sqrt(r * (1 - theta)) around r. We scale that up by 1 / theta.
+     * @param numStdDevs the number of standard deviations, e.g. 2 for about 95% confidence
+     * @return the lower bound, never below the number of retained hashes
+     */
+    public double getLowerBound(double numStdDevs) {
+        final var theta = getTheta();
+        return Math.max(retained, (retained - numStdDevs * Math.sqrt(retained * (1 - theta))) / theta);
+    }
+
+    /**
+     * Returns an upper bound of the number of distinct values.
+     * @param numStdDevs the number of standard deviations, e.g. 2 for about 95% confidence
+     * @return the upper bound
+     */
+    public double getUpperBound(double numStdDevs) {
+        final var theta = getTheta();
+        // with no retained hashes we still can't rule out about 1 / theta values
+        final var r = Math.max(retained, theta < 1 ? 1 : 0);
+        return (r + numStdDevs * Math.sqrt(r * (1 - theta))) / theta;
+    }
+
+    /**
+     * Returns theta as a fraction between 0 and 1, the probability that a distinct value is retained.
+     * @return theta
+     */
+    public double getTheta() {
+        return theta == Long.MAX_VALUE ? 1.0 : (double) theta / Long.MAX_VALUE;
+    }
+
+    public int getRetainedEntries() {
+        return retained;
+    }
+
+    public boolean isEstimationMode() {
+        return theta != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns a sketch of the values in this sketch or the other sketch.
+     * @param other a sketch with the same seed
+     * @return a new sketch, with the smaller k of the two
+     */
+    public ThetaSketch union(ThetaSketch other) {
+        final var union = combined(other, Math.min(k, other.k));
+        for (long hash : table) {
+            if (hash != 0 && hash < union.theta) {
+                union.insert(hash);
+            }
+        }
+        for (long hash : other.table) {
+            if (hash != 0 && hash < union.theta) {
+                union.insert(hash);
+            }
+        }
+        return union;
+    }
+
+    /**
+     * Returns a sketch of the values that are in both this sketch and the other sketch.
+     * Its error bounds are relative to the size of the intersection, so they are wide if the intersection is much
+     * smaller than the sketches (there are few retained hashes left).
+     * @param other a sketch with the same seed
+     * @return a new sketch
+     */
+    public ThetaSketch intersect(ThetaSketch other) {
+        final var intersection = combined(other, Math.min(k, other.k));
+        for (long hash : table) {
+            if (hash != 0 && hash < intersection.theta && other.containsHash(hash)) {
+                intersection.insert(hash);
+            }
+        }
+        return intersection;
+    }
+
+    /**
+     * Returns a sketch of the values that are in this sketch but not in the other sketch.
+     * @param other a sketch with the same seed
+     * @return a new sketch
+     */
+    public ThetaSketch aNotB(ThetaSketch other) {
+        final var difference = combined(other, k);
+        for (long hash : table) {
+            if (hash != 0 && hash < difference.theta && !other.containsHash(hash)) {
+                difference.insert(hash);
+            }
+        }
+        return difference;
+    }
+
+    /**
+     * Creates an empty sketch with the smaller theta of this and the other sketch.
+     * Every sketch holds all of its hashes below that theta, which is what makes the set operations exact on the hashes.
+     */
+    private ThetaSketch combined(ThetaSketch other, int k) {
+        if (other.seed != seed) {
+            throw new IllegalArgumentException("Can only combine theta sketches with the same seed.");
+        }
+        final var result = new ThetaSketch(k, seed);
+        result.theta = Math.min(theta, other.theta);
+        return result;
+    }
+
+    /**
+     * Hashes a value to a uniform 63 bit number with the finalizer of MurmurHash3.
+     * The hash 0 marks empty slots, so it is replaced by 1, which changes nothing in practice.
+     * @param value the value to hash
+     * @return the hash, between 1 and 2^63 - 1
+     */
+    private long hash(long value) {
+        var hash = value + seed;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        hash >>>= 1;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Serializes the sketch into the compact binary format of {@link SketchSerialization}.
+     * Only the retained hashes are written, sorted, so the result does not depend on the table layout.
+     * @return the serialized sketch
+     */
+    public byte[] serialize() {
+        final var hashes = hashes();
+        Arrays.sort(hashes);
+        final var size = Integer.BYTES + 2 * Long.BYTES + SketchSerialization.longsSize(hashes);
+        final var buffer = SketchSerialization.allocate(SketchType.THETA_SKETCH, size);
+        buffer.putInt(k);
+        buffer.putLong(seed);
+        buffer.putLong(theta);
+        SketchSerialization.writeLongs(buffer, hashes);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a sketch that was serialized with {@link #serialize()}.
+     * @param bytes the serialized sketch
+     * @return the restored sketch
+     */
+    public static ThetaSketch deserialize(byte[] bytes) {
+        final var buffer = SketchSerialization.readHeader(bytes, SketchType.THETA_SKETCH);
+        final var k = SketchSerialization.readInt(buffer, 2, 1 << 26, "k");
+        SketchSerialization.checkDecodedSize((long) Long.BYTES * tableSize(k), "theta sketch");
+        final var sketch = new ThetaSketch(k, SketchSerialization.readLong(buffer));
+        final var theta = SketchSerialization.readLong(buffer);
+        if (theta <= 0) {
+            throw new IllegalArgumentException("Invalid theta: " + theta);
+        }
+        sketch.theta = theta;
+        for (long hash : SketchSerialization.readLongs(buffer, 2 * k)) {
+            if (hash <= 0 || hash >= theta) {
+                throw new IllegalArgumentException("Invalid hash: " + hash);
+            }
+            sketch.insert(hash);
+        }
+        SketchSerialization.checkFullyRead(buffer);
+        return sketch;
+    }
+}
@@ -0,0 +1,65 @@
+package utils;
+
+/**
+ * Hashes blocks of values for a set of hash functions, for the batch add and query paths of the sketches.
+ * The results are exactly the same as calling {@link HashFunction#hash(int, int)} for every value, but faster:
+ * - callers hash a block row by row (one hash function for all values in the block), so the coefficients stay in
+ *   registers and the row of their table that is being updated stays in cache;
+ * - the expensive 64 bit modulo by z is replaced by a Barrett reduction (a multiply-high, a multiply and a correction),
+ *   and the final modulo by the table length is done in 32 bits, since the intermediate result is smaller than z.
+ * Negative intermediate results (from negative values) fall back to the plain modulo, so their results stay identical.
+ */
+public class BatchHasher {
+
+    /**
+     * The number of values processed per block, small enough for the values and results to stay in the L1 cache.
+     */
+    public static final int BLOCK_SIZE = 1024;
+
+    private final long[] x;
+    private final long[] y;
+    private final long[] z;
+    // floor((2^64 - 1) / z), or 0 when the coefficients are too large for the Barrett reduction
+    private final long[] reciprocals;
+
+    public BatchHasher(HashFunction[] hashFunctions) {
+        final var k = hashFunctions.length;
+        this.x = new long[k];
+        this.y = new long[k];
+        this.z = new long[k];
+        this.reciprocals = new long[k];
+        for (int i = 0; i < k; i++) {
+            x[i] = hashFunctions[i].getX();
+            y[i] = hashFunctions[i].getY();
+            z[i] = hashFunctions[i].getZ();
+            // x * value + y has to stay below 2^62, and z below 2^31 so the remainder fits in an int
+            final var fits = z[i] > 1 && z[i] <= Integer.MAX_VALUE
+                    && Math.abs(x[i]) < (1L << 30) && Math.abs(y[i]) < (1L << 60);
+            reciprocals[i] = fits ? Long.divideUnsigned(-1L, z[i]) : 0;
+        }
+    }
+
+    /**
+     * Hashes a single value with one hash function.
+     * Callers should loop over the values of a block inside a loop over the rows, so the JIT keeps the coefficients of
+     * the row in registers. This turned out to be faster than first writing a block of indices to an array,
+     * because the loads and stores into the table are then interleaved with the hashing.
+     * @param row the index of the hash function
+     * @param value the value to hash
+     * @param length the length of the table the hash indexes into
+     * @return the same as hash(value, length) of the hash function
+     */
+    public int hash(int row, int value, int length) {
+        final var z = this.z[row];
+        final var reciprocal = reciprocals[row];
+        final var n = x[row] * value + y[row];
+        if (reciprocal == 0 || n < 0) {
+            return (int) ((n % z) % length);
+        }
+        var remainder = n - Math.multiplyHigh(n, reciprocal) * z;
+        while (remainder >= z) {
+            remainder -= z;
+        }
+        return (int) remainder % length;
+    }
+}
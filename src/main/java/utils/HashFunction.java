@@ -1,5 +1,8 @@
 package utils;
 
+import lombok.Getter;
+
+@Getter
 public class HashFunction {
     private final long x;
     private final long y;
@@ -13,4 +13,22 @@ public class HashUtils {
         return hashFunctions;
     }
 
+    /**
+     * Checks if two sets of hash functions hash exactly the same, which is needed to merge two sketches.
+     * @param a the first set of hash functions
+     * @param b the second set of hash functions
+     * @return true if both have the same hash functions in the same order
+     */
+    public static boolean sameHashFunctions(HashFunction[] a, HashFunction[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].getX() != b[i].getX() || a[i].getY() != b[i].getY() || a[i].getZ() != b[i].getZ()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,435 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Helpers for the compact binary format that all sketches share.
+ * Every serialized sketch starts with the same header:
+ * a 4 byte magic number, a 1 byte format version and a 1 byte {@link SketchType} code.
+ * After the header each sketch writes its own parameters, its hash function coefficients and its arrays.
+ * Arrays are written in bulk through typed views of the {@link ByteBuffer}.
+ * Counter arrays that are mostly zero are written as (index, value) pairs instead, which is a lot smaller for sparse sketches.
+ * All readers validate lengths and ranges and throw an {@link IllegalArgumentException} for malformed input.
+ * Since a sparse array of billions of counters takes only a few bytes, the size of the input does not limit what a reader
+ * allocates, so readers also check the decoded size against {@link #getMaxDecodedBytes()} before allocating.
+ */
+public class SketchSerialization {
+
+    public static final int MAGIC = 0x534B4348; // "SKCH"
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = Integer.BYTES + 2;
+
+    /**
+     * The default of {@link #getMaxDecodedBytes()}, which can also be set with -Dsketches.maxDecodedBytes.
+     */
+    public static final long DEFAULT_MAX_DECODED_BYTES = 256L * 1024 * 1024;
+
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+
+    private static volatile long maxDecodedBytes = Long.getLong("sketches.maxDecodedBytes", DEFAULT_MAX_DECODED_BYTES);
+
+    /**
+     * Returns the largest number of bytes a single deserialized sketch may take in memory.
+     * @return the maximum decoded size in bytes
+     */
+    public static long getMaxDecodedBytes() {
+        return maxDecodedBytes;
+    }
+
+    /**
+     * Sets the largest number of bytes a single deserialized sketch may take in memory,
+     * e.g. lower it for sketches that come from untrusted peers.
+     * @param bytes the maximum decoded size in bytes
+     */
+    public static void setMaxDecodedBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("The maximum decoded size must be positive.");
+        }
+        maxDecodedBytes = bytes;
+    }
+
+    /**
+     * Checks the size a sketch will take once decoded, before its arrays are allocated.
+     * @param bytes the decoded size in bytes, computed from the dimensions in the serialized sketch
+     * @param name what is being decoded, used in the error message
+     */
+    public static void checkDecodedSize(long bytes, String name) {
+        if (bytes < 0 || bytes > maxDecodedBytes) {
+            throw new IllegalArgumentException("Decoded " + name + " would take " + bytes + " bytes, more than the maximum of "
+                    + maxDecodedBytes + ".");
+        }
+    }
+
+    /**
+     * Allocates a buffer for a sketch and writes the header.
+     * @param type the type of the sketch
+     * @param payloadSize the number of bytes the sketch will write after the header
+     * @return a buffer positioned right after the header
+     */
+    public static ByteBuffer allocate(SketchType type, int payloadSize) {
+        final var buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type.getCode());
+        return buffer;
+    }
+
+    /**
+     * Reads the type of a serialized sketch without consuming it.
+     * @param bytes the serialized sketch
+     * @return the type stored in the header
+     */
+    public static SketchType peekType(byte[] bytes) {
+        return SketchType.fromCode(wrap(bytes).get(Integer.BYTES + 1));
+    }
+
+    /**
+     * Validates the header of a serialized sketch.
+     * @param bytes the serialized sketch
+     * @param expected the type we expect to read
+     * @return a buffer positioned right after the header
+     */
+    public static ByteBuffer readHeader(byte[] bytes, SketchType expected) {
+        final var buffer = wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a serialized sketch: bad magic number.");
+        }
+        final var version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported serialization version: " + version);
+        }
+        final var type = SketchType.fromCode(buffer.get());
+        if (type != expected) {
+            throw new IllegalArgumentException("Expected a " + expected + " but found a " + type + ".");
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer wrap(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Serialized sketch is too short to contain a header.");
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Checks that the buffer was fully consumed, so trailing garbage is detected.
+     * @param buffer the buffer that was read
+     */
+    public static void checkFullyRead(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Serialized sketch has " + buffer.remaining() + " unexpected trailing bytes.");
+        }
+    }
+
+    /**
+     * Reads a length or size parameter and checks that it is within bounds.
+     * @param buffer the buffer to read from
+     * @param min the smallest allowed value
+     * @param max the largest allowed value
+     * @param name the name of the parameter, used in the error message
+     * @return the value
+     */
+    public static int readInt(ByteBuffer buffer, int min, int max, String name) {
+        checkRemaining(buffer, Integer.BYTES);
+        final var value = buffer.getInt();
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        return value;
+    }
+
+    public static long readLong(ByteBuffer buffer) {
+        checkRemaining(buffer, Long.BYTES);
+        return buffer.getLong();
+    }
+
+    public static int longsSize(long[] values) {
+        return Integer.BYTES + values.length * Long.BYTES;
+    }
+
+    /**
+     * Writes a long array with its length.
+     * @param buffer the buffer to write to
+     * @param values the values to write
+     */
+    public static void writeLongs(ByteBuffer buffer, long[] values) {
+        buffer.putInt(values.length);
+        buffer.asLongBuffer().put(values);
+        buffer.position(buffer.position() + values.length * Long.BYTES);
+    }
+
+    /**
+     * Reads a long array written by {@link #writeLongs}.
+     * @param buffer the buffer to read from
+     * @param maxLength the largest length that is allowed
+     * @return the values
+     */
+    public static long[] readLongs(ByteBuffer buffer, int maxLength) {
+        final var length = readInt(buffer, 0, maxLength, "array length");
+        checkRemaining(buffer, (long) length * Long.BYTES);
+        final var values = new long[length];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + length * Long.BYTES);
+        return values;
+    }
+
+    private static void checkRemaining(ByteBuffer buffer, long bytes) {
+        if (bytes < 0 || buffer.remaining() < bytes) {
+            throw new IllegalArgumentException("Serialized sketch is truncated.");
+        }
+    }
+
+    public static int hashFunctionsSize(HashFunction[] hashFunctions) {
+        return Integer.BYTES + hashFunctions.length * 3 * Long.BYTES;
+    }
+
+    /**
+     * Writes the coefficients of the hash functions, so a sketch can be restored with the exact same hashing.
+     * @param buffer the buffer to write to
+     * @param hashFunctions the hash functions to write
+     */
+    public static void writeHashFunctions(ByteBuffer buffer, HashFunction[] hashFunctions) {
+        buffer.putInt(hashFunctions.length);
+        for (HashFunction hashFunction : hashFunctions) {
+            buffer.putLong(hashFunction.getX());
+            buffer.putLong(hashFunction.getY());
+            buffer.putLong(hashFunction.getZ());
+        }
+    }
+
+    public static HashFunction[] readHashFunctions(ByteBuffer buffer) {
+        final var nr = readInt(buffer, 0, buffer.remaining() / (3 * Long.BYTES), "number of hash functions");
+        final var hashFunctions = new HashFunction[nr];
+        for (int i = 0; i < nr; i++) {
+            final var x = buffer.getLong();
+            final var y = buffer.getLong();
+            final var z = buffer.getLong();
+            if (z <= 0) {
+                throw new IllegalArgumentException("Invalid hash function modulus: " + z);
+            }
+            hashFunctions[i] = new HashFunction(x, y, z);
+        }
+        return hashFunctions;
+    }
+
+    private static int nonZeros(int[] counters) {
+        int nonZeros = 0;
+        for (int counter : counters) {
+            if (counter != 0) {
+                nonZeros++;
+            }
+        }
+        return nonZeros;
+    }
+
+    private static int nonZeros(short[] counters) {
+        int nonZeros = 0;
+        for (short counter : counters) {
+            if (counter != 0) {
+                nonZeros++;
+            }
+        }
+        return nonZeros;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeCounters(ByteBuffer, int[])} needs for the given counters.
+     * @param counters the counters
+     * @return the size in bytes
+     */
+    public static int countersSize(int[] counters) {
+        final var dense = counters.length * Integer.BYTES;
+        final var sparse = Integer.BYTES + nonZeros(counters) * 2 * Integer.BYTES;
+        return 1 + Integer.BYTES + Math.min(dense, sparse);
+    }
+
+    /**
+     * Writes an array of counters, choosing whichever of the dense and the sparse encoding is smaller.
+     * @param buffer the buffer to write to
+     * @param counters the counters to write
+     */
+    public static void writeCounters(ByteBuffer buffer, int[] counters) {
+        final var nonZeros = nonZeros(counters);
+        buffer.putInt(counters.length);
+        if (Integer.BYTES + nonZeros * 2L * Integer.BYTES < (long) counters.length * Integer.BYTES) {
+            buffer.put(SPARSE);
+            buffer.putInt(nonZeros);
+            for (int i = 0; i < counters.length; i++) {
+                if (counters[i] != 0) {
+                    buffer.putInt(i);
+                    buffer.putInt(counters[i]);
+                }
+            }
+        } else {
+            buffer.put(DENSE);
+            buffer.asIntBuffer().put(counters);
+            buffer.position(buffer.position() + counters.length * Integer.BYTES);
+        }
+    }
+
+    /**
+     * Reads an array of counters written by {@link #writeCounters(ByteBuffer, int[])}.
+     * @param buffer the buffer to read from
+     * @param expectedLength the length the array must have, or -1 if any length is allowed
+     * @return the counters
+     */
+    public static int[] readCounters(ByteBuffer buffer, int expectedLength) {
+        final var length = readLength(buffer, expectedLength, Integer.BYTES);
+        checkRemaining(buffer, 1);
+        final var encoding = buffer.get();
+        if (encoding == DENSE) {
+            checkRemaining(buffer, (long) length * Integer.BYTES);
+        }
+        final var counters = new int[length];
+        if (encoding == DENSE) {
+            buffer.asIntBuffer().get(counters);
+            buffer.position(buffer.position() + length * Integer.BYTES);
+        } else if (encoding == SPARSE) {
+            final var nonZeros = readInt(buffer, 0, length, "number of non-zero counters");
+            checkRemaining(buffer, nonZeros * 2L * Integer.BYTES);
+            int previous = -1;
+            for (int i = 0; i < nonZeros; i++) {
+                previous = readIndex(buffer, length, previous);
+                counters[previous] = buffer.getInt();
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown counter encoding: " + encoding);
+        }
+        return counters;
+    }
+
+    public static int countersSize(short[] counters) {
+        final var dense = counters.length * Short.BYTES;
+        final var sparse = Integer.BYTES + nonZeros(counters) * (Integer.BYTES + Short.BYTES);
+        return 1 + Integer.BYTES + Math.min(dense, sparse);
+    }
+
+    public static void writeCounters(ByteBuffer buffer, short[] counters) {
+        final var nonZeros = nonZeros(counters);
+        buffer.putInt(counters.length);
+        if (Integer.BYTES + nonZeros * (long) (Integer.BYTES + Short.BYTES) < (long) counters.length * Short.BYTES) {
+            buffer.put(SPARSE);
+            buffer.putInt(nonZeros);
+            for (int i = 0; i < counters.length; i++) {
+                if (counters[i] != 0) {
+                    buffer.putInt(i);
+                    buffer.putShort(counters[i]);
+                }
+            }
+        } else {
+            buffer.put(DENSE);
+            buffer.asShortBuffer().put(counters);
+            buffer.position(buffer.position() + counters.length * Short.BYTES);
+        }
+    }
+
+    public static short[] readShortCounters(ByteBuffer buffer, int expectedLength) {
+        final var length = readLength(buffer, expectedLength, Short.BYTES);
+        checkRemaining(buffer, 1);
+        final var encoding = buffer.get();
+        if (encoding == DENSE) {
+            checkRemaining(buffer, (long) length * Short.BYTES);
+        }
+        final var counters = new short[length];
+        if (encoding == DENSE) {
+            buffer.asShortBuffer().get(counters);
+            buffer.position(buffer.position() + length * Short.BYTES);
+        } else if (encoding == SPARSE) {
+            final var nonZeros = readInt(buffer, 0, length, "number of non-zero counters");
+            checkRemaining(buffer, nonZeros * (long) (Integer.BYTES + Short.BYTES));
+            int previous = -1;
+            for (int i = 0; i < nonZeros; i++) {
+                previous = readIndex(buffer, length, previous);
+                counters[previous] = buffer.getShort();
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown counter encoding: " + encoding);
+        }
+        return counters;
+    }
+
+    public static int bitsSize(boolean[] bits) {
+        return Integer.BYTES + ((bits.length + 63) >>> 6) * Long.BYTES;
+    }
+
+    /**
+     * Writes a boolean array packed into 64 bit words.
+     * @param buffer the buffer to write to
+     * @param bits the booleans to write
+     */
+    public static void writeBits(ByteBuffer buffer, boolean[] bits) {
+        final var words = new long[(bits.length + 63) >>> 6];
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) {
+                words[i >>> 6] |= 1L << i;
+            }
+        }
+        buffer.putInt(bits.length);
+        writeWords(buffer, words);
+    }
+
+    public static int wordsSize(long[] words) {
+        return words.length * Long.BYTES;
+    }
+
+    /**
+     * Writes a bit array that is already packed into 64 bit words, without its length.
+     * Writing the length with putInt first gives the same format as {@link #writeBits}.
+     * @param buffer the buffer to write to
+     * @param words the words, with bit i in bit (i % 64) of word i / 64
+     */
+    public static void writeWords(ByteBuffer buffer, long[] words) {
+        buffer.asLongBuffer().put(words);
+        buffer.position(buffer.position() + words.length * Long.BYTES);
+    }
+
+    public static boolean[] readBits(ByteBuffer buffer, int expectedLength) {
+        final var length = readLength(buffer, expectedLength, 1);
+        final var words = readWords(buffer, length);
+        final var bits = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            bits[i] = (words[i >>> 6] & (1L << i)) != 0;
+        }
+        return bits;
+    }
+
+    /**
+     * Reads the words written by {@link #writeWords}.
+     * @param buffer the buffer to read from
+     * @param length the number of bits, read before with {@link #readInt}
+     * @return the words
+     */
+    public static long[] readWords(ByteBuffer buffer, int length) {
+        final var nrOfWords = (length + 63) >>> 6;
+        checkRemaining(buffer, (long) nrOfWords * Long.BYTES);
+        final var words = new long[nrOfWords];
+        buffer.asLongBuffer().get(words);
+        buffer.position(buffer.position() + words.length * Long.BYTES);
+        return words;
+    }
+
+    private static int readLength(ByteBuffer buffer, int expectedLength, int elementBytes) {
+        checkRemaining(buffer, Integer.BYTES);
+        final var length = buffer.getInt();
+        if (length < 0 || (expectedLength >= 0 && length != expectedLength)) {
+            throw new IllegalArgumentException("Invalid array length: " + length);
+        }
+        checkDecodedSize((long) length * elementBytes, "array");
+        return length;
+    }
+
+    /**
+     * Reads the index of a sparse counter, which must be larger than the index before it,
+     * so an index can't be written twice.
+     */
+    private static int readIndex(ByteBuffer buffer, int length, int previous) {
+        final var index = buffer.getInt();
+        if (index <= previous || index >= length) {
+            throw new IllegalArgumentException("Counter index out of range or out of order: " + index);
+        }
+        return index;
+    }
+}
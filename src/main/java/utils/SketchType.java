@@ -0,0 +1,40 @@
+package utils;
+
+/**
+ * The type tag that is written into the header of every serialized sketch.
+ * The code is stored as a single byte, so the order of the constants does not matter, but codes should never be reused.
+ */
+public enum SketchType {
+    BLOOM_FILTER((byte) 1),
+    COUNTING_BLOOM_FILTER((byte) 2),
+    COUNT_MIN_SKETCH((byte) 3),
+    CM_RANGE_SKETCH((byte) 4),
+    CUCKOO_FILTER((byte) 5),
+    FM_SKETCH((byte) 6),
+    EXPONENTIAL_HISTOGRAM((byte) 7),
+    THETA_SKETCH((byte) 8);
+
+    private final byte code;
+
+    SketchType(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Looks up the sketch type that belongs to a header code.
+     * @param code the code read from a serialized sketch
+     * @return the matching sketch type
+     */
+    public static SketchType fromCode(byte code) {
+        for (SketchType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sketch type code: " + code);
+    }
+}